@@ -32,6 +32,7 @@ public class DynamicWidthActivity extends Activity {
     private CassowaryLayout layout;
     private ScrollView scrollView;
 
+    private static final String DRAGGER = "dragger";
     private static final String DRAGGER_POSITION = "draggerPosition";
 
     @Override
@@ -67,8 +68,8 @@ public class DynamicWidthActivity extends Activity {
                     case MotionEvent.ACTION_POINTER_UP:
                         break;
                     case MotionEvent.ACTION_MOVE:
-                        draggerNode.setVariableToValue(DRAGGER_POSITION, X - delta);
-                        layout.requestLayout();
+                        // several moves may arrive per frame, only the last position is solved for
+                        layout.edit().setVariableToValue(DRAGGER, DRAGGER_POSITION, X - delta).commit();
                         break;
                 }
 
@@ -8,6 +8,7 @@ import android.view.Display;
 import android.view.ViewTreeObserver;
 import android.widget.ScrollView;
 
+import no.agens.cassowarylayout.BackgroundSolver;
 import no.agens.cassowarylayout.CassowaryLayout;
 import no.agens.cassowarylayout.Node;
 
@@ -23,6 +24,7 @@ public class ParallaxScrollingActivity extends Activity {
     private static final String SCREEN_WIDTH = "screenWidth";
     private static final String SCREEN_HEIGHT = "screenHeight";
     private static final String SCROLL_Y = "scrollY";
+    private static final String CONTAINER = "container";
 
     private int screenHeight;
     private int screenWidth;
@@ -40,22 +42,24 @@ public class ParallaxScrollingActivity extends Activity {
             public void onCassowaryLayoutSetupComplete(CassowaryLayout layout) {
                 final Node containerNode = cassowaryLayout.getCassowaryModel().getContainerNode();
 
+                containerNode.setVariableToValue(SCROLL_POSITION, 0);
+                containerNode.setVariableToValue(SCROLL_Y, 0);
+                containerNode.setVariableToValue(SCREEN_HEIGHT, screenHeight);
+                containerNode.setVariableToValue(SCREEN_WIDTH, screenWidth);
+
+                // solve on the solver thread while scrolling, the layout applies the newest solution every frame
+                final BackgroundSolver backgroundSolver = cassowaryLayout.startBackgroundSolver();
+
                 scrollView.getViewTreeObserver().addOnScrollChangedListener(new ViewTreeObserver.OnScrollChangedListener() {
 
                     @Override
                     public void onScrollChanged() {
 
                         int scrollY = scrollView.getScrollY();
-                        containerNode.setVariableToValue(SCROLL_POSITION, getScrollPosition(scrollY));
-                        containerNode.setVariableToValue(SCROLL_Y, scrollY);
-                        cassowaryLayout.getCassowaryModel().solve();
-                        cassowaryLayout.setChildPositionsFromCassowaryModel();
+                        backgroundSolver.suggestValue(CONTAINER, SCROLL_POSITION, getScrollPosition(scrollY));
+                        backgroundSolver.suggestValue(CONTAINER, SCROLL_Y, scrollY);
                     }
                 });
-                containerNode.setVariableToValue(SCROLL_POSITION, 0);
-                containerNode.setVariableToValue(SCROLL_Y, 0);
-                containerNode.setVariableToValue(SCREEN_HEIGHT, screenHeight);
-                containerNode.setVariableToValue(SCREEN_WIDTH, screenWidth);
             }
         });
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout.precompute;
+
+import org.pybee.cassowary.Constraint;
+import org.pybee.cassowary.Expression;
+import org.pybee.cassowary.SimplexSolver;
+import org.pybee.cassowary.Variable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import no.agens.cassowarylayout.CompiledConstraint;
+import no.agens.cassowarylayout.ConstraintParser;
+import no.agens.cassowarylayout.NodeVariables;
+import no.agens.cassowarylayout.util.CassowaryUtil;
+import no.agens.cassowarylayout.util.Dimension;
+
+/**
+ * Solves a constraint set on the JVM the way CassowaryModel solves it on a device whose container is measured
+ * exactly. The node variables, their implicit constraints, the dimensions and the container size are defined by the
+ * plain Java classes of the library that its nodes use.
+ */
+class OfflineSolver {
+
+    private final float density;
+    private final SimplexSolver solver = new SimplexSolver();
+    private final HashMap<String, Variable> containerVariables = new HashMap<String, Variable>();
+    private final LinkedHashMap<String, HashMap<String, Variable>> nodes = new LinkedHashMap<String, HashMap<String, Variable>>();
+
+    static class Result {
+        final String[] names;
+        final float[] frames;
+
+        Result(String[] names, float[] frames) {
+            this.names = names;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * @param densityDpi the density the dp dimensions in the constraints are resolved with
+     */
+    OfflineSolver(int densityDpi) {
+        this.density = densityDpi / 160f;
+        solver.setAutosolve(false);
+    }
+
+    /**
+     * @return true if the solution only depends on the container size and density: no intrinsic sizes, and no
+     * dimensions that depend on other settings such as the font scale
+     */
+    static boolean isStatic(List<String> constraints) {
+        for (String constraint : constraints) {
+            if (constraint.contains("intrinsic")) {
+                return false;
+            }
+            for (String token : ConstraintParser.tokenizeExpression(constraint)) {
+                Dimension dimension = Dimension.parse(token);
+                if (dimension != null && dimension.getUnit() != null && !"px".equals(dimension.getUnit()) && !"dp".equals(dimension.getUnit())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    Result solve(List<String> constraints, int width, int height) {
+        ConstraintParser.CassowaryVariableResolver resolver = new ConstraintParser.CassowaryVariableResolver() {
+            @Override
+            public Variable resolveVariable(String variableName) {
+                return OfflineSolver.this.resolveVariable(variableName);
+            }
+
+            @Override
+            public Expression resolveConstant(String constantName) {
+                Double value = OfflineSolver.this.resolveConstant(constantName);
+                return value == null ? null : new Expression(value);
+            }
+        };
+        List<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>();
+        for (String constraint : constraints) {
+            ConstraintParser.compileConstraints(constraint, resolver, compiledConstraints);
+        }
+        for (CompiledConstraint compiled : compiledConstraints) {
+            // fallbacks for GONE children do not apply, all children are visible until the layout is set up
+            if (compiled.getIfGone() == null) {
+                solver.addConstraint(ConstraintParser.parseConstraint(compiled, resolver));
+            }
+        }
+        // as CassowaryModel.setMeasureSpecOnContainer sets exact sizes
+        CassowaryUtil.createOrUpdateLinearEquationConstraint(getContainerVariable(NodeVariables.WIDTH), null, width, solver);
+        CassowaryUtil.createOrUpdateLinearEquationConstraint(getContainerVariable(NodeVariables.HEIGHT), null, height, solver);
+        solver.solve();
+
+        String[] names = nodes.keySet().toArray(new String[nodes.size()]);
+        float[] frames = new float[names.length * 4];
+        for (int slot = 0; slot < names.length; slot++) {
+            frames[slot * 4] = (float) getNodeVariable(names[slot], NodeVariables.LEFT).value();
+            frames[slot * 4 + 1] = (float) getNodeVariable(names[slot], NodeVariables.TOP).value();
+            frames[slot * 4 + 2] = (float) getNodeVariable(names[slot], NodeVariables.WIDTH).value();
+            frames[slot * 4 + 3] = (float) getNodeVariable(names[slot], NodeVariables.HEIGHT).value();
+        }
+        return new Result(names, frames);
+    }
+
+    private Variable resolveVariable(String variableName) {
+        String[] parts = variableName.split("\\.");
+        if (parts.length < 2) {
+            throw new RuntimeException("unknown variable " + variableName);
+        }
+        if ("container".equals(parts[0]) || "parent".equals(parts[0])) {
+            return getContainerVariable(parts[1]);
+        }
+        return getNodeVariable(parts[0], parts[1]);
+    }
+
+    private Double resolveConstant(String constantName) {
+        try {
+            return Double.parseDouble(constantName);
+        } catch (NumberFormatException e) {
+            // not a number, maybe a dimension
+        }
+        Dimension dimension = Dimension.parse(constantName);
+        if (dimension == null) {
+            return null;
+        }
+        if (dimension.getUnit() == null) {
+            return dimension.getValue();
+        }
+        return "px".equals(dimension.getUnit()) ? dimension.getValue() : dimension.getValue() * density;
+    }
+
+    private Variable getContainerVariable(String name) {
+        name = NodeVariables.getCanonicalName(name);
+        Variable variable = containerVariables.get(name);
+        if (variable == null) {
+            variable = new Variable();
+            addImplicitConstraint(NodeVariables.createContainerConstraint(name, variable, new NodeVariables.Lookup() {
+                @Override
+                public Variable getVariable(String name) {
+                    return getContainerVariable(name);
+                }
+            }));
+            containerVariables.put(name, variable);
+        }
+        return variable;
+    }
+
+    private Variable getNodeVariable(final String nodeName, String name) {
+        HashMap<String, Variable> variables = nodes.get(nodeName);
+        if (variables == null) {
+            variables = new HashMap<String, Variable>();
+            nodes.put(nodeName, variables);
+        }
+        name = NodeVariables.getCanonicalName(name);
+        Variable variable = variables.get(name);
+        if (variable == null) {
+            variable = new Variable();
+            addImplicitConstraint(NodeVariables.createChildConstraint(name, variable, new NodeVariables.Lookup() {
+                @Override
+                public Variable getVariable(String name) {
+                    return getNodeVariable(nodeName, name);
+                }
+            }));
+            variables.put(name, variable);
+        }
+        return variable;
+    }
+
+    private void addImplicitConstraint(Constraint constraint) {
+        if (constraint != null) {
+            solver.addConstraint(constraint);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout.precompute;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Solves constraint arrays of an app's value resources for a list of device configurations and writes the frames
+ * to a raw resource, which PrecomputedFrames looks up at runtime. Only arrays whose solution depends on nothing but
+ * the container size and density are solved, and only if no qualified values directory, e.g. values-land, overrides
+ * them, as the frames are looked up by array name alone. Configurations are content sizes in dp, i.e. without
+ * padding.
+ *
+ * <pre>
+ * task precomputeCassowaryFrames(type: no.agens.cassowarylayout.precompute.PrecomputeFramesTask) {
+ *     valuesDirectory = file('src/main/res/values')
+ *     outputFile = file("$buildDir/generated/res/cassowary/raw/cassowary_precomputed_frames.bin")
+ *     constraintArrays = ['chess']
+ *     configuration 360, 360, 320
+ * }
+ * </pre>
+ */
+public class PrecomputeFramesTask extends DefaultTask {
+
+    // must match PrecomputedFrames in the library
+    private static final int MAGIC = 0x43505246;
+    private static final int FORMAT_VERSION = 1;
+
+    private File valuesDirectory;
+    private File outputFile;
+    private List<String> constraintArrays = new ArrayList<String>();
+    private List<String> configurations = new ArrayList<String>();
+
+    @InputDirectory
+    public File getValuesDirectory() {
+        return valuesDirectory;
+    }
+
+    public void setValuesDirectory(File valuesDirectory) {
+        this.valuesDirectory = valuesDirectory;
+    }
+
+    @OutputFile
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * @return the names of the string arrays to solve, all static arrays if empty
+     */
+    @Input
+    public List<String> getConstraintArrays() {
+        return constraintArrays;
+    }
+
+    public void setConstraintArrays(List<String> constraintArrays) {
+        this.constraintArrays = constraintArrays;
+    }
+
+    @Input
+    public List<String> getConfigurations() {
+        return configurations;
+    }
+
+    /**
+     * Adds a configuration to solve for: the size of the container content area in dp and a density in dpi, e.g.
+     * 320 for xhdpi.
+     */
+    public void configuration(int widthDp, int heightDp, int densityDpi) {
+        configurations.add(widthDp + "x" + heightDp + "@" + densityDpi);
+    }
+
+    @TaskAction
+    public void precompute() throws IOException {
+        Map<String, List<String>> arrays = readStringArrays();
+
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(outputFile));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(arrays.size());
+            for (Map.Entry<String, List<String>> array : arrays.entrySet()) {
+                output.writeUTF(array.getKey());
+                output.writeInt(configurations.size());
+                for (String configuration : configurations) {
+                    writeConfiguration(output, array.getValue(), configuration);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        getLogger().info("precomputed " + arrays.size() + " layouts for " + configurations.size() + " configurations");
+    }
+
+    private void writeConfiguration(DataOutputStream output, List<String> constraints, String configuration) throws IOException {
+        String[] sizeAndDensity = configuration.split("@");
+        String[] size = sizeAndDensity[0].split("x");
+        int densityDpi = Integer.parseInt(sizeAndDensity[1]);
+        int width = toPixels(Integer.parseInt(size[0]), densityDpi);
+        int height = toPixels(Integer.parseInt(size[1]), densityDpi);
+
+        OfflineSolver.Result result = new OfflineSolver(densityDpi).solve(constraints, width, height);
+
+        output.writeInt(densityDpi);
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(result.names.length);
+        for (String name : result.names) {
+            output.writeUTF(name);
+        }
+        for (float value : result.frames) {
+            output.writeFloat(value);
+        }
+    }
+
+    private static int toPixels(int dp, int densityDpi) {
+        return (int) (dp * densityDpi / 160f + 0.5f);
+    }
+
+    private Map<String, List<String>> readStringArrays() {
+        Set<String> overridden = readOverriddenArrayNames();
+        LinkedHashMap<String, List<String>> arrays = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> array : readStringArrays(valuesDirectory).entrySet()) {
+            String name = array.getKey();
+            if (!constraintArrays.isEmpty() && !constraintArrays.contains(name)) {
+                continue;
+            }
+            if (overridden.contains(name)) {
+                if (constraintArrays.contains(name)) {
+                    throw new GradleException(name + " is overridden in a qualified values directory and cannot be precomputed");
+                }
+                getLogger().info("skipping " + name + ", it is overridden in a qualified values directory");
+            } else if (OfflineSolver.isStatic(array.getValue())) {
+                arrays.put(name, array.getValue());
+            } else if (constraintArrays.contains(name)) {
+                throw new GradleException(name + " depends on intrinsic sizes or font scale and cannot be precomputed");
+            }
+        }
+        return arrays;
+    }
+
+    /**
+     * @return the names of the string arrays in the values directories next to valuesDirectory, e.g. values-sw600dp
+     */
+    private Set<String> readOverriddenArrayNames() {
+        HashSet<String> names = new HashSet<String>();
+        File[] directories = valuesDirectory.getAbsoluteFile().getParentFile().listFiles();
+        if (directories == null) {
+            return names;
+        }
+        for (File directory : directories) {
+            if (directory.isDirectory() && directory.getName().startsWith(valuesDirectory.getName() + "-")) {
+                names.addAll(readStringArrays(directory).keySet());
+            }
+        }
+        return names;
+    }
+
+    private static Map<String, List<String>> readStringArrays(File directory) {
+        LinkedHashMap<String, List<String>> arrays = new LinkedHashMap<String, List<String>>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return arrays;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".xml")) {
+                continue;
+            }
+            Document document;
+            try {
+                document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            } catch (Exception e) {
+                throw new GradleException("could not read " + file, e);
+            }
+            NodeList arrayElements = document.getElementsByTagName("string-array");
+            for (int i = 0; i < arrayElements.getLength(); i++) {
+                Element arrayElement = (Element) arrayElements.item(i);
+                ArrayList<String> constraints = new ArrayList<String>();
+                NodeList items = arrayElement.getElementsByTagName("item");
+                for (int j = 0; j < items.getLength(); j++) {
+                    constraints.add(items.item(j).getTextContent().trim());
+                }
+                arrays.put(arrayElement.getAttribute("name"), constraints);
+            }
+        }
+        return arrays;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+import android.view.LayoutInflater;
+import android.view.View;
+
+/**
+ * Crosses the breakpoint of a row whose icon is larger from 600px, see breakpoint_layout.xml.
+ */
+public class BreakpointTest extends AndroidTestCase {
+
+    private static final int NARROW_WIDTH = 320;
+    private static final int WIDE_WIDTH = 640;
+
+    public void testPredicatesBoundTheSize() {
+        Breakpoint breakpoint = Breakpoint.parse(getContext(), "width >= 400px, height < 300px: row_constraints");
+
+        assertTrue(breakpoint.matches(400, 299));
+        assertFalse(breakpoint.matches(399, 200));
+        assertFalse(breakpoint.matches(500, 300));
+        assertTrue(Breakpoint.parse(getContext(), "height <= 300px: row_constraints").matches(0, 300));
+    }
+
+    public void testCrossingBreakpointSwapsModels() {
+        CassowaryLayout layout = (CassowaryLayout) LayoutInflater.from(getContext()).inflate(
+                getContext().getResources().getIdentifier("breakpoint_layout", "layout", getContext().getPackageName()), null);
+        View icon = layout.getChildAt(0);
+
+        measureAndLayout(layout, NARROW_WIDTH);
+        CassowaryModel narrowModel = layout.getCassowaryModel();
+        assertEquals(48, icon.getWidth());
+
+        measureAndLayout(layout, WIDE_WIDTH);
+        assertNotSame(narrowModel, layout.getCassowaryModel());
+        assertEquals(96, icon.getWidth());
+        assertEquals(WIDE_WIDTH - 96, layout.getChildAt(1).getWidth());
+
+        measureAndLayout(layout, NARROW_WIDTH);
+        assertSame(narrowModel, layout.getCassowaryModel());
+        assertEquals(48, icon.getWidth());
+        assertEquals(NARROW_WIDTH - 48, layout.getChildAt(1).getWidth());
+    }
+
+    public void testCachedSolutionIsDroppedWhenValuesChange() {
+        Breakpoint breakpoint = Breakpoint.parse(getContext(), "width >= 600px: wide_row_constraints");
+        CassowaryModel model = breakpoint.getModel(getContext());
+        model.getContainerNode().setVariableToValue(Node.WIDTH, WIDE_WIDTH);
+        model.solve();
+        int widthSpec = View.MeasureSpec.makeMeasureSpec(WIDE_WIDTH, View.MeasureSpec.EXACTLY);
+        breakpoint.putSolution(widthSpec, Fixtures.HEIGHT_SPEC, WIDE_WIDTH, Fixtures.HEIGHT);
+        assertNotNull(breakpoint.getSolution(widthSpec, Fixtures.HEIGHT_SPEC));
+
+        model.getContainerNode().setVariableToValue("offset", 10);
+        assertNull(breakpoint.getSolution(widthSpec, Fixtures.HEIGHT_SPEC));
+    }
+
+    private static void measureAndLayout(CassowaryLayout layout, int width) {
+        layout.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY), Fixtures.HEIGHT_SPEC);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+/**
+ * Starts and cancels animators on the list layout. The test thread gets a looper that is never run, so no frame of an
+ * animation is drawn.
+ */
+public class ConstraintAnimatorTest extends AndroidTestCase {
+
+    private CassowaryLayout layout;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        layout = Fixtures.inflateListLayout(getContext());
+        Fixtures.measureAndLayout(layout);
+    }
+
+    public void testOneAnimatorRunsAtATime() {
+        ConstraintAnimator first = new ConstraintAnimator(layout).animate("container", "offset", 40);
+        ConstraintAnimator second = new ConstraintAnimator(layout).animate("label_0", "height", 48);
+        first.start();
+        try {
+            second.start();
+            fail("started a second animator on the layout");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(second.isRunning());
+
+        first.cancel();
+        second.start();
+        assertTrue(second.isRunning());
+        second.cancel();
+    }
+
+    public void testCancelledAnimatorsLeaveTheSolverEditable() {
+        ConstraintAnimator first = new ConstraintAnimator(layout).animate("container", "offset", 40);
+        first.start();
+        first.cancel();
+        ConstraintAnimator second = new ConstraintAnimator(layout).animate("container", "offset", 80);
+        second.start();
+        second.cancel();
+
+        // cancelled before their first frame, the variable keeps the value it started at
+        CassowaryModel model = layout.getCassowaryModel();
+        FrameSnapshot snapshot = model.getSnapshot();
+        assertEquals(0f, snapshot.getLeft(snapshot.getSlot("icon_0")));
+
+        model.getContainerNode().setVariableToValue("offset", 16);
+        model.solve();
+        snapshot = model.getSnapshot();
+        assertEquals(16f, snapshot.getLeft(snapshot.getSlot("icon_0")));
+    }
+
+    public void testVariableIsAnimatedOncePerAnimator() {
+        ConstraintAnimator animator = new ConstraintAnimator(layout).animate("container", "offset", 40);
+        try {
+            animator.animate("container", "offset", 80);
+            fail("animated a variable twice");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testAnimatorWithoutVariablesDoesNotStart() {
+        ConstraintAnimator animator = new ConstraintAnimator(layout);
+        try {
+            animator.start();
+            fail("started an animator without variables");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(animator.isRunning());
+        assertNull(layout.getRunningAnimator());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Compares switching between the expanded and collapsed states of a list of cards with rebuilding the model.
+ */
+public class ConstraintStateBenchmarkTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "ConstraintStateBenchmark";
+
+    private static final int SWITCHES = 20;
+    private static final int CARDS = 6;
+
+    public void testSwitchSolvesLikeRebuiltModel() {
+        CassowaryModel model = createModel();
+        model.setState("expanded");
+        solve(model);
+        model.setState("collapsed");
+        solve(model);
+
+        CassowaryModel rebuilt = new CassowaryModel(getContext());
+        rebuilt.addConstraints(createBaseConstraints());
+        rebuilt.addConstraints(createCollapsedConstraints());
+        solve(rebuilt);
+
+        assertEquals("collapsed", model.getState());
+        Fixtures.assertSameFrames(rebuilt.getSnapshot(), model.getSnapshot());
+    }
+
+    public void testSwitchOnlyChangesDifferingConstraints() {
+        CassowaryModel model = createModel();
+        model.setState("expanded");
+        assertEquals(CARDS, model.getLastStateSwitchOperations());
+
+        // the collapsed state shares all but the last card's height with the expanded state
+        ArrayList<CharSequence> partlyExpanded = new ArrayList<CharSequence>(Arrays.asList(createCollapsedConstraints()));
+        partlyExpanded.set(CARDS - 1, "card_" + (CARDS - 1) + ".height == 240dp");
+        model.defineState("partlyExpanded", partlyExpanded.toArray(new CharSequence[CARDS]));
+        model.setState("collapsed");
+        model.setState("partlyExpanded");
+        assertEquals(2, model.getLastStateSwitchOperations());
+
+        model.setState(null);
+        assertEquals(CARDS, model.getLastStateSwitchOperations());
+    }
+
+    public void testBenchmarkSwitchAgainstRebuild() {
+        CassowaryModel model = createModel();
+        solve(model);
+
+        int switchOperations = 0;
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < SWITCHES; i++) {
+            model.setState(i % 2 == 0 ? "expanded" : "collapsed");
+            switchOperations += model.getLastStateSwitchOperations();
+            solve(model);
+        }
+        Log.d(LOG_TAG, SWITCHES + " state switches took " + TimerUtil.since(timeBefore));
+
+        int rebuildOperations = 0;
+        timeBefore = System.nanoTime();
+        for (int i = 0; i < SWITCHES; i++) {
+            CassowaryModel rebuilt = new CassowaryModel(getContext());
+            rebuilt.addConstraints(createBaseConstraints());
+            rebuilt.addConstraints(i % 2 == 0 ? createExpandedConstraints() : createCollapsedConstraints());
+            rebuildOperations += rebuilt.getConstraintGeneration();
+            solve(rebuilt);
+        }
+        Log.d(LOG_TAG, SWITCHES + " rebuilds took " + TimerUtil.since(timeBefore));
+
+        // the first switch only adds the heights, every later one replaces them
+        assertEquals(CARDS + (SWITCHES - 1) * 2 * CARDS, switchOperations);
+        assertTrue(switchOperations + " operations switching, " + rebuildOperations + " rebuilding",
+                switchOperations < rebuildOperations);
+    }
+
+    private CassowaryModel createModel() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(createBaseConstraints());
+        model.defineState("expanded", createExpandedConstraints());
+        model.defineState("collapsed", createCollapsedConstraints());
+        return model;
+    }
+
+    private static void solve(CassowaryModel model) {
+        model.getContainerNode().setVariableToValue(Node.WIDTH, Fixtures.WIDTH);
+        model.solve();
+    }
+
+    private static CharSequence[] createBaseConstraints() {
+        ArrayList<String> constraints = new ArrayList<String>();
+        for (int card = 0; card < CARDS; card++) {
+            String name = "card_" + card;
+            constraints.add(name + ".left == 0");
+            constraints.add(name + ".width == container.width");
+            constraints.add(name + ".top == " + (card == 0 ? "0" : "card_" + (card - 1) + ".bottom"));
+        }
+        return constraints.toArray(new CharSequence[constraints.size()]);
+    }
+
+    private static CharSequence[] createExpandedConstraints() {
+        return createHeightConstraints("240dp");
+    }
+
+    private static CharSequence[] createCollapsedConstraints() {
+        return createHeightConstraints("72dp");
+    }
+
+    private static CharSequence[] createHeightConstraints(String height) {
+        CharSequence[] constraints = new CharSequence[CARDS];
+        for (int card = 0; card < CARDS; card++) {
+            constraints[card] = "card_" + card + ".height == " + height;
+        }
+        return constraints;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Compares the chess board written out tile by tile with the same board written as templates.
+ */
+public class ConstraintTemplateBenchmarkTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "ConstraintTemplateBenchmark";
+
+    private static final int COMPILES = 20;
+
+    private static final String[] TEMPLATES = {
+            "container.tileSize LEQ container.width / 8",
+            "container.tileSize LEQ container.height / 8",
+            "container.tileSize == container.width / 8 !weak",
+            "@for(file = a..h, rank = 8..1) {file}{rank}.left == container.tileSize * {#file}",
+            "@for(file = a..h, rank = 8..1) {file}{rank}.top == container.tileSize * {8 - rank}",
+            "@for(file = a..h, rank = 8..1) {file}{rank}.height == container.tileSize",
+            "@for(file = a..h, rank = 8..1) {file}{rank}.width == container.tileSize"
+    };
+
+    public void testTemplatesSolveLikeExpandedConstraints() {
+        CassowaryModel expanded = createSolvedModel(createExpandedConstraints());
+        CassowaryModel templated = createSolvedModel(TEMPLATES);
+
+        FrameSnapshot actual = templated.getSnapshot();
+        assertEquals(64, actual.getSlotCount());
+        Fixtures.assertSameFrames(expanded.getSnapshot(), actual);
+        // the board fills the square container, a1 is in the bottom left corner
+        float tileSize = Fixtures.WIDTH / 8;
+        int a1 = actual.getSlot("a1");
+        assertEquals(tileSize, actual.getWidth(a1));
+        assertEquals(tileSize, actual.getHeight(a1));
+        assertEquals(0f, actual.getLeft(a1));
+        assertEquals(tileSize * 7, actual.getTop(a1));
+    }
+
+    public void testExpansion() {
+        ArrayList<CompiledConstraint> compiled = new ArrayList<CompiledConstraint>();
+        CassowaryModel model = new CassowaryModel(getContext());
+        ConstraintParser.compileConstraints("@for(i = 3..1, j = 0..1) @ifGone(a{i}) b{i}_{j}.left == {i * 10 + j} !weak",
+                model.cassowaryVariableResolver, compiled);
+        assertEquals(6, compiled.size());
+        assertEquals("@ifGone(a3) b3_0.left EQ 30.0 !weak", compiled.get(0).getCanonicalForm());
+        assertEquals("@ifGone(a1) b1_1.left EQ 11.0 !weak", compiled.get(5).getCanonicalForm());
+    }
+
+    public void testBenchmarkTemplatesAgainstExpandedConstraints() {
+        CharSequence[] expanded = createExpandedConstraints();
+        Log.d(LOG_TAG, "expanded constraints are " + getLength(expanded) + " chars, templates " + getLength(TEMPLATES) + " chars");
+
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < COMPILES; i++) {
+            ModelBlueprint.compile(getContext(), expanded);
+        }
+        Log.d(LOG_TAG, COMPILES + " compiles of expanded constraints took " + TimerUtil.since(timeBefore));
+
+        timeBefore = System.nanoTime();
+        for (int i = 0; i < COMPILES; i++) {
+            ModelBlueprint.compile(getContext(), TEMPLATES);
+        }
+        Log.d(LOG_TAG, COMPILES + " compiles of templates took " + TimerUtil.since(timeBefore));
+
+        // the templates compile to the same constraints, from a fraction of the text
+        assertEquals(expanded.length, ModelBlueprint.compile(getContext(), TEMPLATES).getConstraints().size());
+        assertTrue(getLength(TEMPLATES) * 4 < getLength(expanded));
+    }
+
+    private CassowaryModel createSolvedModel(CharSequence[] constraints) {
+        // a square board
+        CassowaryModel model = Fixtures.createModel(getContext(), constraints);
+        model.getContainerNode().setVariableToValue(Node.HEIGHT, Fixtures.WIDTH);
+        model.solve();
+        return model;
+    }
+
+    private static int getLength(CharSequence[] constraints) {
+        int length = 0;
+        for (CharSequence constraint : constraints) {
+            length += constraint.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return the chess board as it was written before templates
+     */
+    private static CharSequence[] createExpandedConstraints() {
+        ArrayList<String> constraints = new ArrayList<String>();
+        constraints.add("container.tileSize LEQ container.width / 8");
+        constraints.add("container.tileSize LEQ container.height / 8");
+        constraints.add("container.tileSize == container.width / 8 !weak");
+        for (char file = 'a'; file <= 'h'; file++) {
+            for (int rank = 8; rank >= 1; rank--) {
+                String tile = "" + file + rank;
+                int column = file - 'a';
+                constraints.add(tile + ".left == " + (column == 0 ? "0" : column == 1 ? "container.tileSize" : "container.tileSize * " + column));
+                int row = 8 - rank;
+                constraints.add(tile + ".top == " + (row == 0 ? "0" : row == 1 ? "container.tileSize" : "container.tileSize * " + row));
+                constraints.add(tile + ".height == container.tileSize");
+                constraints.add(tile + ".width == container.tileSize");
+            }
+        }
+        return constraints.toArray(new CharSequence[constraints.size()]);
+    }
+}
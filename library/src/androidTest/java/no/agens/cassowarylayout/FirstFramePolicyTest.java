@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures a layout whose constraints are being set up with each first frame policy. The setup tasks are held by the
+ * SetupScheduler until a test runs them.
+ */
+public class FirstFramePolicyTest extends AndroidTestCase {
+
+    private final ArrayList<Runnable> heldTasks = new ArrayList<Runnable>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FirstFrameCache.clear();
+        SetupScheduler.getInstance().setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                heldTasks.add(task);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SetupScheduler.getInstance().setExecutor(null);
+        FirstFrameCache.clear();
+        super.tearDown();
+    }
+
+    public void testNoPolicyLaysOutNothingUntilSetUp() {
+        CassowaryLayout layout = createSettingUpLayout(CassowaryLayout.FIRST_FRAME_POLICY_NONE);
+        Fixtures.measureAndLayout(layout);
+
+        assertEquals(Fixtures.WIDTH, layout.getMeasuredWidth());
+        assertEquals(0, layout.getChildAt(0).getWidth());
+        assertEquals(-1, layout.getTimeToFirstCorrectFrame());
+    }
+
+    public void testBlockPolicyWaitsForSetup() throws InterruptedException {
+        FrameSnapshot expected = solveListLayout();
+        CassowaryLayout layout = createSettingUpLayout(CassowaryLayout.FIRST_FRAME_POLICY_BLOCK);
+        layout.setFirstFrameTimeout(5000);
+        assertEquals(1, heldTasks.size());
+
+        Thread setup = new Thread(heldTasks.get(0));
+        setup.start();
+        Fixtures.measureAndLayout(layout);
+        setup.join();
+
+        assertLaidOutFrom(expected, layout);
+        assertTrue(layout.getTimeToFirstCorrectFrame() >= 0);
+    }
+
+    public void testCachedPolicyLaysOutFromCachedFrames() {
+        FrameSnapshot expected = solveListLayout();
+        FirstFrameCache.put(SolvedLayoutCache.hashConstraints(Fixtures.getListConstraints(getContext())),
+                Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC, Fixtures.WIDTH, Fixtures.HEIGHT, expected);
+        CassowaryLayout layout = createSettingUpLayout(CassowaryLayout.FIRST_FRAME_POLICY_CACHED_MEASUREMENT);
+        Fixtures.measureAndLayout(layout);
+
+        assertLaidOutFrom(expected, layout);
+        // the cached frames are only known to be right once the model has solved them
+        assertEquals(-1, layout.getTimeToFirstCorrectFrame());
+    }
+
+    private CassowaryLayout createSettingUpLayout(int firstFramePolicy) {
+        CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+        layout.setFirstFramePolicy(firstFramePolicy);
+        // the layout has not been laid out, so it has no frames of its own to show while the constraints are set up
+        layout.setupSolverAsync(Fixtures.getListConstraints(getContext()));
+        return layout;
+    }
+
+    private FrameSnapshot solveListLayout() {
+        CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+        Fixtures.measureAndLayout(layout);
+        return layout.getCassowaryModel().getSnapshot();
+    }
+
+    private void assertLaidOutFrom(FrameSnapshot expected, CassowaryLayout layout) {
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            View child = layout.getChildAt(i);
+            String name = getContext().getResources().getResourceEntryName(child.getId());
+            int slot = expected.getSlot(name);
+            assertEquals(name, (int) expected.getLeft(slot), child.getLeft());
+            assertEquals(name, (int) expected.getTop(slot), child.getTop());
+            assertEquals(name, (int) expected.getWidth(slot), child.getWidth());
+            assertEquals(name, (int) expected.getHeight(slot), child.getHeight());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View.MeasureSpec;
+
+import junit.framework.Assert;
+
+/**
+ * Models, layouts and assertions shared by the tests. The list constraints and layout are test resources: ROWS rows
+ * of an icon, indented by container.offset, and a label.
+ */
+final class Fixtures {
+
+    static final int WIDTH = 320;
+    static final int HEIGHT = 480;
+    static final int ROWS = 8;
+
+    static final int WIDTH_SPEC = MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY);
+    static final int HEIGHT_SPEC = MeasureSpec.makeMeasureSpec(HEIGHT, MeasureSpec.EXACTLY);
+
+    private Fixtures() {
+    }
+
+    static CharSequence[] getListConstraints(Context context) {
+        return context.getResources().getTextArray(getListConstraintsId(context));
+    }
+
+    static int getListConstraintsId(Context context) {
+        return getResourceId(context, "list_constraints", "array");
+    }
+
+    static CassowaryLayout inflateListLayout(Context context) {
+        return (CassowaryLayout) LayoutInflater.from(context).inflate(getResourceId(context, "list_layout", "layout"), null);
+    }
+
+    static void measureAndLayout(CassowaryLayout layout) {
+        layout.measure(WIDTH_SPEC, HEIGHT_SPEC);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    }
+
+    /**
+     * @return a model of the constraints with the width of the container set to WIDTH
+     */
+    static CassowaryModel createModel(Context context, CharSequence[] constraints) {
+        CassowaryModel model = new CassowaryModel(context);
+        model.addConstraints(constraints);
+        model.getContainerNode().setVariableToValue(Node.WIDTH, WIDTH);
+        return model;
+    }
+
+    static CassowaryModel createSolvedModel(Context context, CharSequence[] constraints) {
+        CassowaryModel model = createModel(context, constraints);
+        model.solve();
+        return model;
+    }
+
+    /**
+     * Asserts that the snapshots have the same frames for the same node names, whatever slots the nodes are in.
+     */
+    static void assertSameFrames(FrameSnapshot expected, FrameSnapshot actual) {
+        Assert.assertEquals(expected.getSlotCount(), actual.getSlotCount());
+        for (int slot = 0; slot < expected.getSlotCount(); slot++) {
+            String name = expected.getName(slot);
+            int actualSlot = actual.getSlot(name);
+            Assert.assertTrue(name, actualSlot != -1);
+            Assert.assertEquals(name, expected.getLeft(slot), actual.getLeft(actualSlot));
+            Assert.assertEquals(name, expected.getTop(slot), actual.getTop(actualSlot));
+            Assert.assertEquals(name, expected.getWidth(slot), actual.getWidth(actualSlot));
+            Assert.assertEquals(name, expected.getHeight(slot), actual.getHeight(actualSlot));
+        }
+    }
+
+    private static int getResourceId(Context context, String name, String type) {
+        // the resources of the tests are not in the R class of the library
+        return context.getResources().getIdentifier(name, type, context.getPackageName());
+    }
+}
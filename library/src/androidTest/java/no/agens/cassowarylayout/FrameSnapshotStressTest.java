@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Edits and solves a model on one thread while other threads read the published snapshots.
+ */
+public class FrameSnapshotStressTest extends AndroidTestCase {
+
+    private static final int EDITS = 2000;
+    private static final int READERS = 4;
+
+    private static final String[] CONSTRAINTS = {
+            "a.left == container.offset",
+            "a.top == 0",
+            "a.width == 100",
+            "a.height == 50",
+            "b.left == a.right",
+            "b.top == a.bottom",
+            "b.width == a.width",
+            "b.height == a.height"
+    };
+
+    public void testSnapshotsAreConsistentWhileEditing() throws InterruptedException {
+        final CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        model.getContainerNode().setVariableToValue("offset", 0);
+        model.solve();
+
+        final AtomicBoolean editing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+
+        for (int i = 0; i < READERS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long lastVersion = 0;
+                    while (editing.get() && failure.get() == null) {
+                        FrameSnapshot snapshot = model.getSnapshot();
+                        String error = checkSnapshot(snapshot, lastVersion);
+                        if (error != null) {
+                            failure.compareAndSet(null, error);
+                        }
+                        lastVersion = snapshot.getVersion();
+                    }
+                    readersDone.countDown();
+                }
+            }).start();
+        }
+
+        // the test thread is the single owner of the model
+        for (int i = 1; i <= EDITS && failure.get() == null; i++) {
+            model.getContainerNode().setVariableToValue("offset", i);
+            model.solve();
+        }
+        editing.set(false);
+        readersDone.await();
+
+        assertNull(failure.get(), failure.get());
+        assertEquals((double) EDITS, model.getSnapshot().getVariable("container.offset"));
+    }
+
+    private static String checkSnapshot(FrameSnapshot snapshot, long lastVersion) {
+        if (snapshot.getVersion() < lastVersion) {
+            return "version went backwards " + snapshot.getVersion() + " < " + lastVersion;
+        }
+        int a = snapshot.getSlot("a");
+        int b = snapshot.getSlot("b");
+        Double offset = snapshot.getVariable("container.offset");
+        if (a == -1 || b == -1 || offset == null) {
+            return "missing frame or variable in snapshot " + snapshot.getVersion();
+        }
+        if (snapshot.getLeft(a) != offset.floatValue()) {
+            return "a.left " + snapshot.getLeft(a) + " != offset " + offset;
+        }
+        if (snapshot.getLeft(b) != snapshot.getLeft(a) + snapshot.getWidth(a)) {
+            return "b.left " + snapshot.getLeft(b) + " != a.right in snapshot " + snapshot.getVersion();
+        }
+        if (snapshot.getTop(b) != snapshot.getTop(a) + snapshot.getHeight(a)) {
+            return "b.top " + snapshot.getTop(b) + " != a.bottom in snapshot " + snapshot.getVersion();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures a row shaped like the list view demo items without views, concurrently on a pool.
+ */
+public class HeadlessMeasureTest extends AndroidTestCase {
+
+    private static final String[] CONSTRAINTS = {
+            "title.left == 0",
+            "title.top == 0",
+            "title.width == container.width",
+            "title.height == title.intrinsicHeight",
+            "body.left == 0",
+            "body.top == title.bottom",
+            "body.width == container.width / 2",
+            "body.height == body.intrinsicHeight",
+            "container.height == body.bottom"
+    };
+
+    public void testMeasureWrapsIntrinsicHeights() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+
+        MeasureResult result = model.measure(exactly(400), unspecified(), null, heights(20, 60));
+
+        assertEquals(400, result.getWidth());
+        assertEquals(80, result.getHeight());
+        FrameSnapshot frames = result.getFrames();
+        int body = frames.getSlot("body");
+        assertEquals(20f, frames.getTop(body));
+        assertEquals(200f, frames.getWidth(body));
+    }
+
+    public void testConcurrentMeasurements() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ArrayList<Future<MeasureResult>> results = new ArrayList<Future<MeasureResult>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(CassowaryModel.measureAsync(executor, getContext(), CONSTRAINTS, exactly(400), unspecified(), null, heights(i, 2 * i)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(3 * i, results.get(i).get().getHeight());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static HashMap<String, Integer> heights(int title, int body) {
+        HashMap<String, Integer> heights = new HashMap<String, Integer>();
+        heights.put("title", title);
+        heights.put("body", body);
+        return heights;
+    }
+
+    private static int exactly(int size) {
+        return View.MeasureSpec.makeMeasureSpec(size, View.MeasureSpec.EXACTLY);
+    }
+
+    private static int unspecified() {
+        return View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+    }
+}
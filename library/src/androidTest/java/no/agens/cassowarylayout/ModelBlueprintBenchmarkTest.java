@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Compares instances of a blueprint with models built by parsing, for a card with a grid of children.
+ */
+public class ModelBlueprintBenchmarkTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "ModelBlueprintBenchmark";
+
+    private static final int INSTANCES = 20;
+    private static final int ROWS = 4;
+    private static final int COLUMNS = 4;
+
+    public void testInstanceSolvesLikeParsedModel() {
+        CharSequence[] constraints = createCardConstraints();
+        CassowaryModel parsed = Fixtures.createModel(getContext(), constraints);
+        CassowaryModel instance = ModelBlueprint.compile(getContext(), constraints).newInstance();
+        assertTrue(instance.isPendingInstance());
+        instance.getContainerNode().setVariableToValue(Node.WIDTH, Fixtures.WIDTH);
+
+        for (CassowaryModel model : new CassowaryModel[] { parsed, instance }) {
+            model.getNodeByName("title").setIntrinsicHeight(24);
+            model.solve();
+        }
+        assertFalse(instance.isPendingInstance());
+
+        Fixtures.assertSameFrames(parsed.getSnapshot(), instance.getSnapshot());
+    }
+
+    public void testResourceBlueprintIsCompiledAgainForNewConfiguration() {
+        int constraintsResId = Fixtures.getListConstraintsId(getContext());
+        ModelBlueprint blueprint = ModelBlueprint.forResource(getContext(), constraintsResId);
+        assertSame(blueprint, ModelBlueprint.forResource(getContext(), constraintsResId));
+
+        Resources resources = getContext().getApplicationContext().getResources();
+        Configuration original = new Configuration(resources.getConfiguration());
+        Configuration scaled = new Configuration(original);
+        scaled.fontScale = original.fontScale * 2;
+        resources.updateConfiguration(scaled, resources.getDisplayMetrics());
+        try {
+            assertNotSame(blueprint, ModelBlueprint.forResource(getContext(), constraintsResId));
+        } finally {
+            resources.updateConfiguration(original, resources.getDisplayMetrics());
+        }
+    }
+
+    public void testBenchmarkInstantiation() {
+        CharSequence[] constraints = createCardConstraints();
+        ModelBlueprint blueprint = ModelBlueprint.compile(getContext(), constraints);
+
+        ArrayList<CassowaryModel> models = new ArrayList<CassowaryModel>();
+        long memoryBefore = usedMemory();
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < INSTANCES; i++) {
+            CassowaryModel model = new CassowaryModel(getContext());
+            model.addConstraints(constraints);
+            model.solve();
+            models.add(model);
+        }
+        long parsedBytes = models.get(0).getRetainedBytes();
+        Log.d(LOG_TAG, "parsing " + INSTANCES + " models took " + TimerUtil.since(timeBefore) +
+                " retaining " + (usedMemory() - memoryBefore) / INSTANCES + " bytes per model");
+
+        models.clear();
+        memoryBefore = usedMemory();
+        timeBefore = System.nanoTime();
+        for (int i = 0; i < INSTANCES; i++) {
+            models.add(blueprint.newInstance());
+        }
+        Log.d(LOG_TAG, "creating " + INSTANCES + " unused instances took " + TimerUtil.since(timeBefore) +
+                " retaining " + (usedMemory() - memoryBefore) / INSTANCES + " bytes per instance");
+        // an unused instance has no solver of its own
+        assertTrue(models.get(0).getRetainedBytes() < parsedBytes / 2);
+
+        timeBefore = System.nanoTime();
+        for (CassowaryModel model : models) {
+            model.solve();
+        }
+        Log.d(LOG_TAG, "solving " + INSTANCES + " instances took " + TimerUtil.since(timeBefore) +
+                " retaining " + (usedMemory() - memoryBefore) / INSTANCES + " bytes per instance");
+
+        for (CassowaryModel model : models) {
+            assertFalse(model.isPendingInstance());
+            assertEquals(blueprint.getBaseSnapshot().getSlotCount(), model.getSnapshot().getSlotCount());
+            assertEquals(parsedBytes, model.getRetainedBytes());
+        }
+    }
+
+    private static CharSequence[] createCardConstraints() {
+        ArrayList<String> constraints = new ArrayList<String>();
+        constraints.add("title.left == 0");
+        constraints.add("title.top == 0");
+        constraints.add("title.width == container.width");
+        constraints.add("title.height == title.intrinsicHeight");
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                String cell = "cell_" + row + "_" + column;
+                constraints.add(cell + ".width == container.width / " + COLUMNS);
+                constraints.add(cell + ".height == " + cell + ".width");
+                constraints.add(cell + ".left == " + (column == 0 ? "0" : "cell_" + row + "_" + (column - 1) + ".right"));
+                constraints.add(cell + ".top == " + (row == 0 ? "title.bottom" : "cell_" + (row - 1) + "_" + column + ".bottom"));
+            }
+        }
+        return constraints.toArray(new CharSequence[constraints.size()]);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Releases the solver of a detached layout through MemoryTrimmer and checks that the layout solves the same when it
+ * is measured again.
+ */
+public class ReleaseSolverTest extends AndroidTestCase {
+
+    public void testReleasedLayoutSolvesLikeBefore() {
+        CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+        Fixtures.measureAndLayout(layout);
+        CassowaryModel model = layout.getCassowaryModel();
+        synchronized (model) {
+            model.getContainerNode().setVariableToValue("offset", 16);
+        }
+        layout.requestLayout();
+        Fixtures.measureAndLayout(layout);
+        FrameSnapshot expected = model.getSnapshot();
+        long retained = layout.getRetainedBytes();
+
+        MemoryTrimmer trimmer = MemoryTrimmer.getInstance();
+        trimmer.addDetachedLayout(getContext(), layout);
+        try {
+            assertTrue(trimmer.releaseDetachedLayouts() > 0);
+        } finally {
+            trimmer.removeDetachedLayout(layout);
+        }
+        assertNotSame(model, layout.getCassowaryModel());
+        assertTrue(layout.getCassowaryModel().isPendingInstance());
+        assertTrue(layout.getRetainedBytes() < retained);
+
+        layout.requestLayout();
+        Fixtures.measureAndLayout(layout);
+        CassowaryModel rebuilt = layout.getCassowaryModel();
+        assertFalse(rebuilt.isPendingInstance());
+        assertEquals(16.0, rebuilt.getSuggestedValues().get("container.offset"));
+
+        Fixtures.assertSameFrames(expected, rebuilt.getSnapshot());
+        // the offset is restored on the container, which indents the icons
+        assertEquals(16, layout.getChildAt(0).getLeft());
+    }
+
+    public void testLayoutWithStatesIsNotReleased() {
+        CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+        Fixtures.measureAndLayout(layout);
+        synchronized (layout.getCassowaryModel()) {
+            layout.getCassowaryModel().defineState("wide", new CharSequence[] { "label_0.width == 200" });
+        }
+        CassowaryModel model = layout.getCassowaryModel();
+        assertFalse(model.isRebuildable());
+        assertFalse(layout.releaseSolver());
+        assertSame(model, layout.getCassowaryModel());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Replaces the constraints of a solved list model, as a layout does when it is set up again.
+ */
+public class ReplaceConstraintsTest extends AndroidTestCase {
+
+    private static final String CHANGED_CONSTRAINT = "icon_0.width == 48";
+
+    public void testOnlyChangedConstraintsAreReplaced() {
+        CharSequence[] constraints = Fixtures.getListConstraints(getContext());
+        CharSequence[] modified = modify(constraints);
+        CassowaryModel model = Fixtures.createSolvedModel(getContext(), constraints);
+        int generation = model.getConstraintGeneration();
+
+        model.replaceConstraints(modified);
+        model.solve();
+
+        // one constraint removed and one added
+        assertEquals(generation + 2, model.getConstraintGeneration());
+        assertEquals(64, model.getSnapshot().getWidth(model.getSnapshot().getSlot("icon_0")), 0);
+        Fixtures.assertSameFrames(Fixtures.createSolvedModel(getContext(), modified).getSnapshot(), model.getSnapshot());
+    }
+
+    public void testSameConstraintsLeaveTheSolverAlone() {
+        CharSequence[] constraints = Fixtures.getListConstraints(getContext());
+        CassowaryModel model = Fixtures.createSolvedModel(getContext(), constraints);
+        int generation = model.getConstraintGeneration();
+
+        model.replaceConstraints(constraints);
+
+        assertEquals(generation, model.getConstraintGeneration());
+        assertTrue(model.isRebuildable());
+    }
+
+    private static CharSequence[] modify(CharSequence[] constraints) {
+        CharSequence[] modified = constraints.clone();
+        for (int i = 0; i < modified.length; i++) {
+            if (CHANGED_CONSTRAINT.equals(modified[i].toString())) {
+                modified[i] = "icon_0.width == 64";
+                return modified;
+            }
+        }
+        throw new AssertionError("missing " + CHANGED_CONSTRAINT);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Retracts, collects and reinstates the node of a tile that is removed from and added back to a dashboard, and
+ * swaps its constraints for fallbacks while it is gone.
+ */
+public class RetractNodeTest extends AndroidTestCase {
+
+    private static final String[] CONSTRAINTS = {
+            "header.left == 0",
+            "header.top == 0",
+            "header.width == container.width",
+            "header.height == 48",
+            "tile.left == 0",
+            "tile.top == header.bottom",
+            "tile.width == container.width / 2",
+            "tile.height == tile.width",
+            "footer.left == 0",
+            "footer.width == container.width",
+            "footer.height == 48",
+            "footer.top == header.bottom !strong"
+    };
+
+    public void testRemovedNodeIsCollectedAndReinstated() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        model.addConstraints(new String[] { "footer.top GEQ tile.bottom" });
+        solve(model);
+        assertEquals(296f, getTop(model, "footer"));
+
+        model.retractNode("tile");
+        assertEquals(1, model.collectGarbage());
+        solve(model);
+        FrameSnapshot snapshot = model.getSnapshot();
+        assertEquals(2, snapshot.getSlotCount());
+        assertEquals(-1, snapshot.getSlot("tile"));
+        assertEquals(48f, getTop(model, "footer"));
+
+        model.reinstateNode("tile");
+        solve(model);
+        assertEquals(3, model.getSnapshot().getSlotCount());
+        assertEquals(296f, getTop(model, "footer"));
+    }
+
+    public void testNodeReferredToByUntrackedConstraintIsKept() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        model.addConstraint("footer.top GEQ tile.bottom");
+        solve(model);
+
+        model.retractNode("tile");
+        assertEquals(0, model.collectGarbage());
+        solve(model);
+        assertEquals(3, model.getSnapshot().getSlotCount());
+    }
+
+    public void testStateConstraintIsRetractedWithNode() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        model.defineState("pushed", new String[] { "footer.top GEQ tile.bottom" });
+        model.setState("pushed");
+        solve(model);
+        assertEquals(296f, getTop(model, "footer"));
+
+        model.retractNode("tile");
+        assertEquals(1, model.collectGarbage());
+        solve(model);
+        assertEquals(48f, getTop(model, "footer"));
+
+        model.reinstateNode("tile");
+        solve(model);
+        assertEquals(296f, getTop(model, "footer"));
+    }
+
+    public void testFallbackAppliesWhileGone() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        model.addConstraints(new String[] {
+                "footer.top GEQ tile.bottom",
+                "@ifGone(tile) footer.top GEQ header.bottom + 100"
+        });
+        solve(model);
+        assertEquals(296f, getTop(model, "footer"));
+
+        model.setNodeGone("tile", true);
+        solve(model);
+        assertEquals(148f, getTop(model, "footer"));
+
+        model.setNodeGone("tile", false);
+        solve(model);
+        assertEquals(296f, getTop(model, "footer"));
+    }
+
+    public void testFallbackIsNotAddedOneAtATime() {
+        CassowaryModel model = new CassowaryModel(getContext());
+        model.addConstraints(CONSTRAINTS);
+        try {
+            model.addConstraint("@ifGone(tile) footer.top GEQ header.bottom + 100");
+            fail("added a fallback that would apply while the tile is visible");
+        } catch (IllegalArgumentException expected) {
+        }
+        solve(model);
+        assertEquals(48f, getTop(model, "footer"));
+    }
+
+    private static void solve(CassowaryModel model) {
+        model.getContainerNode().setVariableToValue(Node.WIDTH, 496);
+        model.solve();
+    }
+
+    private static float getTop(CassowaryModel model, String name) {
+        FrameSnapshot snapshot = model.getSnapshot();
+        return snapshot.getTop(snapshot.getSlot(name));
+    }
+}
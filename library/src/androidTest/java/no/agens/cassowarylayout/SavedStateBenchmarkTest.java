@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+
+import java.util.ArrayList;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Compares restoring a layout from its saved state and laying it out with setting up its model from scratch.
+ */
+public class SavedStateBenchmarkTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "SavedStateBenchmark";
+
+    private static final int RESTORES = 20;
+
+    public void testRestoredStateMatchesSavedModel() {
+        CassowaryModel model = createSolvedModel();
+        CassowaryLayout.SavedState restored = parcel(save(model));
+
+        Fixtures.assertSameFrames(model.getSnapshot(), restored.frames);
+        assertEquals(model.getSnapshot().getVariables(), restored.frames.getVariables());
+        assertEquals(1, restored.suggestedValues.size());
+        assertEquals(24.0, restored.suggestedValues.get("container.offset"));
+    }
+
+    public void testRestoredLayoutMatchesSavedLayout() {
+        CassowaryLayout saved = createLaidOutLayout();
+        CassowaryLayout restored = Fixtures.inflateListLayout(getContext());
+        restored.onRestoreInstanceState(parcel((CassowaryLayout.SavedState) saved.onSaveInstanceState()));
+
+        // laid out from the saved frames, then from the model set up with the saved values
+        for (int pass = 0; pass < 2; pass++) {
+            restored.requestLayout();
+            Fixtures.measureAndLayout(restored);
+            assertEquals(saved.getChildCount(), restored.getChildCount());
+            for (int i = 0; i < saved.getChildCount(); i++) {
+                View expected = saved.getChildAt(i);
+                View actual = restored.getChildAt(i);
+                assertEquals(expected.getLeft(), actual.getLeft());
+                assertEquals(expected.getTop(), actual.getTop());
+                assertEquals(expected.getWidth(), actual.getWidth());
+                assertEquals(expected.getHeight(), actual.getHeight());
+            }
+        }
+        Fixtures.assertSameFrames(saved.getCassowaryModel().getSnapshot(), restored.getCassowaryModel().getSnapshot());
+    }
+
+    public void testBenchmarkRestoreAgainstFreshSetup() {
+        ArrayList<CassowaryLayout> fresh = new ArrayList<CassowaryLayout>();
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < RESTORES; i++) {
+            CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+            Fixtures.measureAndLayout(layout);
+            fresh.add(layout);
+        }
+        Log.d(LOG_TAG, "inflating, setting up and laying out " + RESTORES + " layouts took " + TimerUtil.since(timeBefore));
+
+        CassowaryLayout.SavedState saved = parcel((CassowaryLayout.SavedState) createLaidOutLayout().onSaveInstanceState());
+        ArrayList<CassowaryLayout> restored = new ArrayList<CassowaryLayout>();
+        timeBefore = System.nanoTime();
+        for (int i = 0; i < RESTORES; i++) {
+            CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+            layout.onRestoreInstanceState(saved);
+            Fixtures.measureAndLayout(layout);
+            restored.add(layout);
+        }
+        Log.d(LOG_TAG, "inflating, restoring and laying out " + RESTORES + " layouts took " + TimerUtil.since(timeBefore));
+
+        // a restored layout shows its saved frames without building the solver of its model
+        for (int i = 0; i < RESTORES; i++) {
+            assertFalse(fresh.get(i).getCassowaryModel().isPendingInstance());
+            assertTrue(restored.get(i).getCassowaryModel().isPendingInstance());
+            assertEquals(24, restored.get(i).getChildAt(0).getLeft());
+        }
+    }
+
+    /**
+     * @return a layout of the list constraints laid out with its icons indented
+     */
+    private CassowaryLayout createLaidOutLayout() {
+        CassowaryLayout layout = Fixtures.inflateListLayout(getContext());
+        Fixtures.measureAndLayout(layout);
+        layout.getCassowaryModel().getContainerNode().setVariableToValue("offset", 24);
+        layout.requestLayout();
+        Fixtures.measureAndLayout(layout);
+        return layout;
+    }
+
+    private static CassowaryLayout.SavedState save(CassowaryModel model) {
+        return new CassowaryLayout.SavedState(View.BaseSavedState.EMPTY_STATE, "key", 0, 0, 320, 480,
+                model.getSnapshot(), model.getSuggestedValues());
+    }
+
+    private static CassowaryLayout.SavedState parcel(CassowaryLayout.SavedState state) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return CassowaryLayout.SavedState.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private CassowaryModel createSolvedModel() {
+        CassowaryModel model = Fixtures.createModel(getContext(), Fixtures.getListConstraints(getContext()));
+        model.getContainerNode().setVariableToValue("offset", 24);
+        model.solve();
+        return model;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes and reads entries of the disk cache. The tasks submitted to the SetupScheduler are held until a test runs
+ * them, each test writes under constraints of its own.
+ */
+public class SolvedLayoutCacheTest extends AndroidTestCase {
+
+    private final ArrayList<Runnable> heldTasks = new ArrayList<Runnable>();
+
+    private SolvedLayoutCache cache;
+    private String constraintsHash;
+    private FirstFrameCache.Entry entry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SetupScheduler.getInstance().setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                heldTasks.add(task);
+            }
+        });
+        cache = SolvedLayoutCache.getInstance(getContext());
+        constraintsHash = SolvedLayoutCache.hashConstraints(new CharSequence[] { getName(), String.valueOf(System.nanoTime()) });
+        FrameSnapshot frames = Fixtures.createSolvedModel(getContext(), Fixtures.getListConstraints(getContext())).getSnapshot();
+        entry = new FirstFrameCache.Entry(Fixtures.WIDTH, Fixtures.HEIGHT, frames);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SetupScheduler.getInstance().setExecutor(null);
+        super.tearDown();
+    }
+
+    public void testEntryIsReadBack() {
+        assertNull(cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC));
+        write();
+
+        FirstFrameCache.Entry read = cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC);
+        assertNotNull(read);
+        assertEquals(Fixtures.WIDTH, read.getMeasuredWidth());
+        assertEquals(Fixtures.HEIGHT, read.getMeasuredHeight());
+        Fixtures.assertSameFrames(entry.getFrames(), read.getFrames());
+    }
+
+    public void testFontScaleIsPartOfTheKey() {
+        write();
+
+        Resources resources = getContext().getApplicationContext().getResources();
+        Configuration original = new Configuration(resources.getConfiguration());
+        Configuration scaled = new Configuration(original);
+        scaled.fontScale = original.fontScale * 2;
+        resources.updateConfiguration(scaled, resources.getDisplayMetrics());
+        try {
+            assertNull(cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC));
+        } finally {
+            resources.updateConfiguration(original, resources.getDisplayMetrics());
+        }
+        assertNotNull(cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC));
+    }
+
+    public void testReadsLeaveAccessTimesToTheScheduler() {
+        write();
+
+        assertNotNull(cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC));
+        assertNotNull(cache.get(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC));
+        // one task applies the access times of both reads
+        assertEquals(1, heldTasks.size());
+        runHeldTasks();
+    }
+
+    private void write() {
+        cache.put(constraintsHash, Fixtures.WIDTH_SPEC, Fixtures.HEIGHT_SPEC, entry);
+        assertEquals(1, heldTasks.size());
+        runHeldTasks();
+    }
+
+    private void runHeldTasks() {
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(heldTasks);
+        heldTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
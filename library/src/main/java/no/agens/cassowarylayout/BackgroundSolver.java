@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import no.agens.cassowarylayout.util.FrameScheduler;
+
+/**
+ * Solves a layout's model on a dedicated thread for continuous, constraint driven motion such as parallax scrolling
+ * or dragging. Suggested values are coalesced per variable and applied by the solver thread, which publishes each
+ * solution as a FrameSnapshot (the back buffer). On every frame the main thread takes the newest complete snapshot
+ * (the front buffer) and moves the children, snapshots that were superseded before a frame are dropped.
+ *
+ * Obtain one with CassowaryLayout.startBackgroundSolver(). While it runs, the solver thread owns the model: the layout
+ * measures and lays out from the published snapshots and posts the changes it makes to the model to the solver thread.
+ */
+public class BackgroundSolver {
+
+    private static final String LOG_TAG = "BackgroundSolver";
+
+    /**
+     * A change to the model, applied on the solver thread before the next solve, see post
+     */
+    interface ModelChange {
+        void apply(CassowaryModel model);
+    }
+
+    private final CassowaryLayout layout;
+    // only accessed on the solver thread while it runs
+    private CassowaryModel model;
+
+    private final HandlerThread thread;
+    private final Handler solverHandler;
+
+    // variable values suggested since the last solve, keyed by node name and variable name
+    private LinkedHashMap<String, EditTransaction.Edit> pendingEdits = new LinkedHashMap<String, EditTransaction.Edit>();
+    private ArrayList<ModelChange> pendingChanges = new ArrayList<ModelChange>();
+    // the model to solve from the next solve on, see rebind
+    private CassowaryModel pendingModel;
+    private boolean solveScheduled;
+    // the values set on the model, kept for the main thread, see getSuggestedValues
+    private final HashMap<String, Double> suggestedValues;
+
+    private final AtomicReference<FrameSnapshot> front = new AtomicReference<FrameSnapshot>();
+
+    private final FrameScheduler frameScheduler;
+
+    private final AtomicLong solveCount = new AtomicLong();
+    private final AtomicLong totalSolveTime = new AtomicLong();
+    private long frameCount;
+    private final AtomicLong droppedSnapshots = new AtomicLong();
+    private long totalApplyTime;
+
+    private volatile boolean stopped;
+
+    private final Runnable solveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            solvePendingEdits();
+        }
+    };
+
+    BackgroundSolver(CassowaryLayout layout, CassowaryModel model) {
+        this.layout = layout;
+        this.model = model;
+        suggestedValues = new HashMap<String, Double>(model.getSuggestedValues());
+        thread = new HandlerThread("CassowarySolver", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        solverHandler = new Handler(thread.getLooper());
+        frameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                applyFront();
+            }
+        });
+    }
+
+    /**
+     * Suggests a value for a variable of a node, "container" refers to the container node. Only the last value
+     * suggested for a variable before the solver thread picks up the edits is applied.
+     */
+    public void suggestValue(String nodeName, String variableName, double value) {
+        if (stopped) {
+            return;
+        }
+        synchronized (this) {
+            EditTransaction.Edit edit = new EditTransaction.Edit(nodeName, variableName, value);
+            pendingEdits.put(edit.getKey(), edit);
+            suggestedValues.put(edit.getKey(), value);
+            scheduleSolve();
+        }
+    }
+
+    /**
+     * Applies a change to the model on the solver thread before the next solve. Must be called on the main thread.
+     */
+    void post(ModelChange change) {
+        synchronized (this) {
+            pendingChanges.add(change);
+            scheduleSolve();
+        }
+    }
+
+    /**
+     * Makes the solver thread solve another model of the layout from now on, e.g. the model of the breakpoint the
+     * layout has crossed into. The values set on the previous model are applied to the new one on the solver thread.
+     * Must be called on the main thread.
+     */
+    void rebind(CassowaryModel model) {
+        synchronized (this) {
+            pendingModel = model;
+            // a solution of the previous model is not applied any more
+            front.set(null);
+            scheduleSolve();
+        }
+    }
+
+    /**
+     * @return the values set on custom variables of the model, keyed by nodeName.variableName
+     */
+    synchronized Map<String, Double> getSuggestedValues() {
+        return new HashMap<String, Double>(suggestedValues);
+    }
+
+    private void scheduleSolve() {
+        if (!solveScheduled) {
+            solveScheduled = true;
+            solverHandler.post(solveRunnable);
+        }
+    }
+
+    /**
+     * Stops the solver thread and hands the model back to the main thread. Must be called on the main thread.
+     */
+    public void stop() {
+        stopped = true;
+        frameScheduler.cancel();
+        thread.quit();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the main thread owns the model again, changes the solver thread did not get to are applied here
+        FrameSnapshot snapshot = applyPending();
+        if (snapshot != null) {
+            front.set(snapshot);
+        }
+        applyFront();
+        Log.d(LOG_TAG, "stopped after " + solveCount.get() + " solves averaging " + getAverageSolveTimeMicros() +
+                " us, " + frameCount + " frames averaging " + getAverageApplyTimeMicros() + " us on the main thread, " +
+                droppedSnapshots.get() + " snapshots dropped");
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return the average time in microseconds the solver thread spent applying edits and solving
+     */
+    public long getAverageSolveTimeMicros() {
+        long count = solveCount.get();
+        return count == 0 ? 0 : totalSolveTime.get() / count / 1000;
+    }
+
+    /**
+     * @return the average time in microseconds the main thread spent applying a snapshot to the children
+     */
+    public long getAverageApplyTimeMicros() {
+        return frameCount == 0 ? 0 : totalApplyTime / frameCount / 1000;
+    }
+
+    public long getSolveCount() {
+        return solveCount.get();
+    }
+
+    /**
+     * @return the number of frames in which a new snapshot was applied
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of solved snapshots that were superseded before they could be applied
+     */
+    public long getDroppedSnapshots() {
+        return droppedSnapshots.get();
+    }
+
+    private void solvePendingEdits() {
+        FrameSnapshot snapshot = applyPending();
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (this) {
+            if (pendingModel != null) {
+                // rebound during the solve, the next solve publishes a solution of the new model
+                return;
+            }
+            // swap the back buffer in, whatever was in front and not yet applied is dropped. Only snapshots of this
+            // solver are counted
+            if (front.getAndSet(snapshot) != null) {
+                droppedSnapshots.incrementAndGet();
+            }
+        }
+        layout.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!stopped) {
+                    frameScheduler.scheduleFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the pending model, changes and edits and solves, on the thread owning the model.
+     * @return the solution, or null if there was nothing to solve
+     */
+    private FrameSnapshot applyPending() {
+        LinkedHashMap<String, EditTransaction.Edit> edits;
+        ArrayList<ModelChange> changes;
+        CassowaryModel rebound;
+        synchronized (this) {
+            edits = pendingEdits;
+            pendingEdits = new LinkedHashMap<String, EditTransaction.Edit>();
+            changes = pendingChanges;
+            pendingChanges = new ArrayList<ModelChange>();
+            rebound = pendingModel;
+            pendingModel = null;
+            solveScheduled = false;
+        }
+        if (edits.isEmpty() && changes.isEmpty() && rebound == null) {
+            return null;
+        }
+
+        long before = System.nanoTime();
+        if (rebound != null) {
+            // values such as a drag position carry over to the constraints of the new model
+            rebound.applyValues(model.getSuggestedValues());
+            model = rebound;
+        }
+        for (ModelChange change : changes) {
+            change.apply(model);
+        }
+        model.applyEdits(edits.values());
+        model.solve();
+        totalSolveTime.addAndGet(System.nanoTime() - before);
+        solveCount.incrementAndGet();
+        return model.getSnapshot();
+    }
+
+    private void applyFront() {
+        FrameSnapshot snapshot = front.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        long before = System.nanoTime();
+        layout.applyBackgroundSnapshot(snapshot);
+        frameCount++;
+        totalApplyTime += System.nanoTime() - before;
+    }
+}
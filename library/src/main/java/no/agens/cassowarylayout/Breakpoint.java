@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+import android.util.TypedValue;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A set of constraints that applies while the size available to a CassowaryLayout is within a range. Breakpoints are
+ * declared with the breakpoints attribute, a string array of items such as
+ * "width >= 600dp, height < 480dp: tablet_landscape" where the name after the colon is the string array of
+ * constraints. The first breakpoint that matches is used, the constraints attribute applies when none match.
+ *
+ * Each breakpoint keeps its own model, set up when the breakpoint is first used, so that crossing a breakpoint swaps
+ * models instead of parsing. Solutions of models that do not depend on intrinsic sizes are cached per measure specs,
+ * and dropped when values are set on the model or its constraints change, e.g. by a state switch.
+ */
+public final class Breakpoint {
+
+    private static final int MAX_CACHED_SOLUTIONS = 8;
+
+    private final String declaration;
+    private final int constraintsResId;
+
+    // minimums are inclusive, maximums exclusive, in pixels
+    private int minWidth = 0;
+    private int maxWidth = Integer.MAX_VALUE;
+    private int minHeight = 0;
+    private int maxHeight = Integer.MAX_VALUE;
+
+    private CassowaryModel model;
+
+    // keyed by the width measure spec in the high and the height measure spec in the low bits
+    private final LruCache<Long, FirstFrameCache.Entry> solutions = new LruCache<Long, FirstFrameCache.Entry>(MAX_CACHED_SOLUTIONS);
+    // the values set on custom variables and the constraint generation of the model when the cached solutions were solved
+    private Map<String, Double> solvedValues;
+    private int solvedGeneration;
+
+    private Breakpoint(String declaration, int constraintsResId) {
+        this.declaration = declaration;
+        this.constraintsResId = constraintsResId;
+    }
+
+    /**
+     * @return a breakpoint for the constraints attribute of a layout, which matches any size
+     */
+    static Breakpoint createDefault(CassowaryModel model) {
+        Breakpoint breakpoint = new Breakpoint("default", 0);
+        breakpoint.model = model;
+        return breakpoint;
+    }
+
+    /**
+     * Parses the breakpoints declared by the string array with the given resource id
+     */
+    public static ArrayList<Breakpoint> parseAll(Context context, int breakpointsResId) {
+        ArrayList<Breakpoint> breakpoints = new ArrayList<Breakpoint>();
+        for (CharSequence declaration : context.getResources().getTextArray(breakpointsResId)) {
+            breakpoints.add(parse(context, declaration.toString()));
+        }
+        return breakpoints;
+    }
+
+    /**
+     * Parses a breakpoint such as "width >= 600dp, height < 480dp: tablet_landscape"
+     */
+    public static Breakpoint parse(Context context, String declaration) {
+        int colon = declaration.lastIndexOf(':');
+        if (colon == -1) {
+            throw new RuntimeException("missing constraints name in breakpoint " + declaration);
+        }
+        String constraintsName = declaration.substring(colon + 1).trim();
+        int constraintsResId = context.getResources().getIdentifier(constraintsName, "array", context.getPackageName());
+        if (constraintsResId == 0) {
+            throw new RuntimeException("unknown constraints array " + constraintsName + " in breakpoint " + declaration);
+        }
+
+        Breakpoint breakpoint = new Breakpoint(declaration, constraintsResId);
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        String predicates = declaration.substring(0, colon).trim();
+        if (predicates.length() > 0) {
+            for (String predicate : predicates.split(",")) {
+                breakpoint.addPredicate(predicate.trim(), displayMetrics);
+            }
+        }
+        return breakpoint;
+    }
+
+    private void addPredicate(String predicate, DisplayMetrics displayMetrics) {
+        String[] parts = predicate.split("\\s+");
+        if (parts.length != 3) {
+            throw new RuntimeException("can't parse predicate " + predicate + " in breakpoint " + declaration);
+        }
+        boolean width = "width".equals(parts[0]);
+        if (!width && !"height".equals(parts[0])) {
+            throw new RuntimeException("unknown dimension " + parts[0] + " in breakpoint " + declaration);
+        }
+        int value = parseDimension(parts[2], displayMetrics);
+        String operator = parts[1];
+        if (">=".equals(operator) || ">".equals(operator)) {
+            int min = ">".equals(operator) ? value + 1 : value;
+            if (width) {
+                minWidth = min;
+            } else {
+                minHeight = min;
+            }
+        } else if ("<".equals(operator) || "<=".equals(operator)) {
+            int max = "<=".equals(operator) ? value + 1 : value;
+            if (width) {
+                maxWidth = max;
+            } else {
+                maxHeight = max;
+            }
+        } else {
+            throw new RuntimeException("unknown operator " + operator + " in breakpoint " + declaration);
+        }
+    }
+
+    private int parseDimension(String dimension, DisplayMetrics displayMetrics) {
+        if (dimension.endsWith("dp")) {
+            float dp = Float.parseFloat(dimension.substring(0, dimension.length() - 2));
+            return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dp, displayMetrics);
+        } else if (dimension.endsWith("px")) {
+            return Integer.parseInt(dimension.substring(0, dimension.length() - 2));
+        }
+        throw new RuntimeException("dimension " + dimension + " must be in dp or px in breakpoint " + declaration);
+    }
+
+    /**
+     * @return true if the breakpoint applies to a layout with the available width and height in pixels
+     */
+    public boolean matches(int width, int height) {
+        return width >= minWidth && width < maxWidth && height >= minHeight && height < maxHeight;
+    }
+
+    public int getConstraintsResId() {
+        return constraintsResId;
+    }
+
+    /**
+     * @return the model of this breakpoint, an instance of the blueprint of its constraints the first time
+     */
+    CassowaryModel getModel(Context context) {
+        if (model == null) {
+            model = ModelBlueprint.forResource(context, constraintsResId).newInstance();
+        }
+        return model;
+    }
+
+    /**
+     * @return the solution cached for the measure specs, or null if there is none or the model has changed since
+     */
+    FirstFrameCache.Entry getSolution(int widthMeasureSpec, int heightMeasureSpec) {
+        if (solvedValues == null || solvedGeneration != model.getConstraintGeneration() || !solvedValues.equals(model.getSuggestedValues())) {
+            return null;
+        }
+        return solutions.get(getKey(widthMeasureSpec, heightMeasureSpec));
+    }
+
+    void putSolution(int widthMeasureSpec, int heightMeasureSpec, int measuredWidth, int measuredHeight) {
+        if (model.usesIntrinsicSize()) {
+            return;
+        }
+        Map<String, Double> values = model.getSuggestedValues();
+        int generation = model.getConstraintGeneration();
+        if (!values.equals(solvedValues) || generation != solvedGeneration) {
+            solutions.evictAll();
+            solvedValues = values;
+            solvedGeneration = generation;
+        }
+        solutions.put(getKey(widthMeasureSpec, heightMeasureSpec), new FirstFrameCache.Entry(measuredWidth, measuredHeight, model.getSnapshot()));
+    }
+
+    private static long getKey(int widthMeasureSpec, int heightMeasureSpec) {
+        return ((long) widthMeasureSpec << 32) | (heightMeasureSpec & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return declaration;
+    }
+}
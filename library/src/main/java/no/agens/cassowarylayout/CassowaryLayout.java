@@ -21,25 +21,31 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewParent;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import no.agens.cassowarylayout.util.FrameScheduler;
 import no.agens.cassowarylayout.util.MeasureSpecUtils;
 import no.agens.cassowarylayout.util.TimerUtil;
 
 public class CassowaryLayout extends ViewGroup  {
 
     private String logTag;
+    // null until a model is set up, adopted or needed, and while the model of this detached layout is in the ModelPool
     private volatile CassowaryModel cassowaryModel;
     private ViewIdResolver viewIdResolver;
 
@@ -49,6 +55,21 @@ public class CassowaryLayout extends ViewGroup  {
     private float aspectRatioWidthFactor = 1;
     private float aspectRatioHeightFactor = 1;
 
+    private boolean layoutBoundary = false;
+    private boolean laidOut = false;
+    private boolean localLayoutPending = false;
+
+    private boolean flattenIntoParent = false;
+    private CharSequence[] flattenedConstraints;
+    // set when the constraints of this layout have been added to the model of the parent layout
+    private String nodeNamespace;
+    private ArrayList<CassowaryLayout> pendingNestedLayouts;
+
+    private int maxMeasureRounds = 3;
+    private int measureRounds;
+    private int intrinsicCacheHits;
+    private int intrinsicCacheMisses;
+
     private enum State {
         UNINITIALIZED,
         PARSING_CONSTRAINTS,
@@ -63,7 +84,100 @@ public class CassowaryLayout extends ViewGroup  {
     private ArrayList<CassowaryLayoutSetupCallback> setupObservers;
 
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private ExecutorService executorService = Executors.newFixedThreadPool(1);
+    private SetupScheduler.Task setupTask;
+    private BackgroundSolver backgroundSolver;
+    // the solver has one edit session at a time, so at most one animator runs per layout
+    private ConstraintAnimator runningAnimator;
+    private CharSequence[] setupConstraints;
+    // incremented with every setup, so that a setup that has been superseded is skipped
+    private volatile int setupGeneration;
+
+    // the resource the constraints were read from, 0 if they were not read from a resource
+    private int constraintsResId;
+    // set when the constraints of a set up model have been replaced, so that it no longer matches the resource
+    private boolean constraintsReplaced;
+
+    private boolean recycleModel = false;
+
+    public static final int FIRST_FRAME_POLICY_NONE = 0;
+    public static final int FIRST_FRAME_POLICY_BLOCK = 1;
+    public static final int FIRST_FRAME_POLICY_CACHED_MEASUREMENT = 2;
+
+    private int firstFramePolicy = FIRST_FRAME_POLICY_NONE;
+    private int firstFrameTimeout = 50;
+
+    // where the frames the children are measured to and laid out from come from, chosen by every measure pass
+    private enum FrameSource {
+        // sized from the aspect ratio while setup is in progress, nothing to lay out
+        NONE,
+        MODEL,
+        // saved before this layout was recreated
+        RESTORED_STATE,
+        // solved at build time, see PrecomputedFrames
+        PRECOMPUTED,
+        // solved earlier for the same constraints and measure specs, see FirstFrameCache
+        CACHED,
+        // solved earlier for the active breakpoint and measure specs
+        BREAKPOINT,
+        // the last solution of the model, while its constraints are replaced
+        LIVE
+    }
+
+    private FrameSource frameSource = FrameSource.NONE;
+    // the frames of every source but MODEL and NONE
+    private FrameSnapshot sourceFrames;
+
+    // identifies the constraints of an async setup in the FirstFrameCache
+    private String constraintsKey;
+    private long cachedFrameLayoutTime = -1;
+    private int measuredWidthSpec;
+    private int measuredHeightSpec;
+    // the specs of the last solution put into the FirstFrameCache, -1 if none has been put for the constraintsKey
+    private int cachedWidthSpec = -1;
+    private int cachedHeightSpec = -1;
+
+    // constraints whose setup waits until a measure pass finds no precomputed frames, see PrecomputedFrames
+    private CharSequence[] deferredConstraints;
+    private String precomputedConstraintsName;
+
+    // frames and values saved before this layout was recreated, see onRestoreInstanceState
+    private SavedState restoredState;
+    private Map<String, Double> restoredValues;
+
+    // constraint sets for ranges of available sizes, the default applies when none of the others match
+    private ArrayList<Breakpoint> breakpoints;
+    private Breakpoint defaultBreakpoint;
+    private Breakpoint activeBreakpoint;
+    // set when nodes of removed children may be collected on the next measure pass
+    private boolean garbageCollectionPending;
+    // children added (true) or removed (false) by name, applied to the model by the thread owning it on the next measure pass
+    private LinkedHashMap<String, Boolean> pendingChildChanges;
+    // the measure specs and the GONE children last handed to the background solver, see measureFromBackgroundSolver
+    private int solverWidthSpec = -1;
+    private int solverHeightSpec = -1;
+    private ArrayList<String> solverGoneChildren;
+
+    // set when the children show frames that were not solved by the model, e.g. after swapping models
+    private boolean layoutAllChildren;
+    // the frames the children were last positioned from, whichever solve or cache they came from
+    private FrameSnapshot laidOutFrames;
+
+    private final long creationTime = System.nanoTime();
+    private long timeToFirstCorrectFrame = -1;
+
+    // committed edits by node and variable name, applied on the next frame
+    private LinkedHashMap<String, EditTransaction.Edit> pendingEdits = new LinkedHashMap<String, EditTransaction.Edit>();
+    private FrameScheduler editFrameScheduler;
+    private long appliedEditCount;
+    private long coalescedEditCount;
+
+    private final Runnable localLayoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            localLayoutPending = false;
+            layoutLocally();
+        }
+    };
 
     public interface CassowaryLayoutSetupCallback {
         void onCassowaryLayoutSetupComplete(CassowaryLayout layout);
@@ -89,12 +203,128 @@ public class CassowaryLayout extends ViewGroup  {
         public String debug(String output) {
             return "";
         }
+
+        private static final int MAX_CACHED_HEIGHTS = 8;
+
+        // heights measured for this child keyed by the exact width it was measured at
+        private SparseIntArray heightForWidthCache = new SparseIntArray(MAX_CACHED_HEIGHTS);
+
+        // the width the intrinsic height was last measured or looked up at, -1 if not measured height for width
+        private int intrinsicHeightWidth = -1;
+
+        // the slot of the frame of this child in snapshots of the model, -1 until the child has been laid out
+        private int slot = -1;
+
+        private void cacheHeightForWidth(int width, int height) {
+            if (heightForWidthCache.size() >= MAX_CACHED_HEIGHTS) {
+                heightForWidthCache.clear();
+            }
+            heightForWidthCache.put(width, height);
+        }
+    }
+
+    /**
+     * The solved frames and the values set on custom variables of a layout, saved across configuration changes and
+     * activity recreation. The solver itself cannot be serialized, so a restored layout is laid out from the saved
+     * frames until its model has been set up, and the values are set on the model before it is first solved.
+     */
+    static class SavedState extends BaseSavedState {
+
+        final String constraintsKey;
+        final int widthMeasureSpec;
+        final int heightMeasureSpec;
+        final int measuredWidth;
+        final int measuredHeight;
+        final FrameSnapshot frames;
+        final HashMap<String, Double> suggestedValues;
+
+        SavedState(Parcelable superState, String constraintsKey, int widthMeasureSpec, int heightMeasureSpec,
+                   int measuredWidth, int measuredHeight, FrameSnapshot frames, Map<String, Double> suggestedValues) {
+            super(superState);
+            this.constraintsKey = constraintsKey;
+            this.widthMeasureSpec = widthMeasureSpec;
+            this.heightMeasureSpec = heightMeasureSpec;
+            this.measuredWidth = measuredWidth;
+            this.measuredHeight = measuredHeight;
+            this.frames = frames;
+            this.suggestedValues = new HashMap<String, Double>(suggestedValues);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            constraintsKey = in.readString();
+            widthMeasureSpec = in.readInt();
+            heightMeasureSpec = in.readInt();
+            measuredWidth = in.readInt();
+            measuredHeight = in.readInt();
+            String[] names = in.createStringArray();
+            float[] values = in.createFloatArray();
+            float containerWidth = in.readFloat();
+            float containerHeight = in.readFloat();
+            HashMap<String, Double> variables = readValues(in);
+            frames = new FrameSnapshot(new FrameSnapshot.Slots(names), values, containerWidth, containerHeight, variables, 0);
+            suggestedValues = readValues(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeString(constraintsKey);
+            out.writeInt(widthMeasureSpec);
+            out.writeInt(heightMeasureSpec);
+            out.writeInt(measuredWidth);
+            out.writeInt(measuredHeight);
+            int slotCount = frames.getSlotCount();
+            String[] names = new String[slotCount];
+            float[] values = new float[slotCount * 4];
+            for (int slot = 0; slot < slotCount; slot++) {
+                names[slot] = frames.getName(slot);
+                values[slot * 4] = frames.getLeft(slot);
+                values[slot * 4 + 1] = frames.getTop(slot);
+                values[slot * 4 + 2] = frames.getWidth(slot);
+                values[slot * 4 + 3] = frames.getHeight(slot);
+            }
+            out.writeStringArray(names);
+            out.writeFloatArray(values);
+            out.writeFloat(frames.getContainerWidth());
+            out.writeFloat(frames.getContainerHeight());
+            writeValues(out, frames.getVariables());
+            writeValues(out, suggestedValues);
+        }
+
+        private static void writeValues(Parcel out, Map<String, Double> values) {
+            out.writeInt(values.size());
+            for (Map.Entry<String, Double> entry : values.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeDouble(entry.getValue());
+            }
+        }
+
+        private static HashMap<String, Double> readValues(Parcel in) {
+            int size = in.readInt();
+            HashMap<String, Double> values = new HashMap<String, Double>(size);
+            for (int i = 0; i < size; i++) {
+                values.put(in.readString(), in.readDouble());
+            }
+            return values;
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 
     public CassowaryLayout(Context context, ViewIdResolver viewIdResolver) {
         super(context);
         this.viewIdResolver = viewIdResolver;
-        this.cassowaryModel = new CassowaryModel(context);
     }
 
     public CassowaryLayout(Context context) {
@@ -108,15 +338,24 @@ public class CassowaryLayout extends ViewGroup  {
     public CassowaryLayout(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         this.viewIdResolver = new DefaultViewIdResolver(getContext());
-        cassowaryModel = new CassowaryModel(getContext().getApplicationContext());
         readConstraintsFromXml(attrs);
     }
 
     public CassowaryModel getCassowaryModel() {
+        startDeferredSetup();
+        return ensureModel();
+    }
+
+    // the model is created when needed, so that a layout that adopts a model or was detached to the pool does not allocate one
+    private CassowaryModel ensureModel() {
+        if (cassowaryModel == null) {
+            cassowaryModel = new CassowaryModel(getContext().getApplicationContext());
+        }
         return cassowaryModel;
     }
 
     public void addSetupCallback(final CassowaryLayoutSetupCallback setupObserver) {
+        startDeferredSetup();
         if (state == State.PARSING_COMPLETE) {
             handler.post(new Runnable() {
                 @Override
@@ -132,8 +371,23 @@ public class CassowaryLayout extends ViewGroup  {
         }
     }
 
+    /**
+     * Sets up the model with the constraints on the SetupScheduler. A layout that has been set up before keeps its
+     * model, only the constraints that changed are replaced, and it shows its last solution until that is done.
+     */
     public void setupSolverAsync(final CharSequence[] constraints) {
-        state = State.PARSING_CONSTRAINTS;
+        if (state == State.PARSING_COMPLETE && !isFlattened()) {
+            // the model no longer matches the constraints resource, see canRecycleModel
+            constraintsReplaced = true;
+        } else {
+            state = State.PARSING_CONSTRAINTS;
+        }
+        setupConstraints = constraints;
+        if (firstFramePolicy == FIRST_FRAME_POLICY_CACHED_MEASUREMENT) {
+            constraintsKey = SolvedLayoutCache.hashConstraints(constraints);
+            cachedWidthSpec = -1;
+            cachedHeightSpec = -1;
+        }
 
         log("setupSolverAsync - submitting task");
 
@@ -141,6 +395,9 @@ public class CassowaryLayout extends ViewGroup  {
             @Override
             public void run() {
                 state = State.PARSING_COMPLETE;
+                addPendingNestedLayouts();
+                // replaced constraints may have added or collected nodes
+                layoutAllChildren = true;
                 if (isMeasureSpecSet()) {
                     log("measureSpecSet requesting layout");
                     callbackAfterSetup();
@@ -166,26 +423,230 @@ public class CassowaryLayout extends ViewGroup  {
         this.aspectRatioHeightFactor = aspectRatioHeightFactor;
     }
 
+    /**
+     * Moves the children whose frame has changed since they were last positioned. Intended to be called after
+     * cassowaryModel.solve() when only positions have changed, e.g. while scrolling.
+     */
     public void setChildPositionsFromCassowaryModel() {
+        if (cassowaryModel == null) {
+            // detached, with the model in the pool
+            return;
+        }
         long timeBeforeSolve = System.nanoTime();
         int count = getChildCount();
+        int positioned = 0;
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
+        if (snapshot == null) {
+            return;
+        }
         for (int i = 0; i < count; i++) {
             View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
 
-                int childId = child.getId();
+                int slot = snapshot.getSlot(viewIdResolver.getViewNameById(child.getId()));
 
-                Node node = getNodeById(childId);
+                if (slot != -1 && isFrameChanged(snapshot, slot)) {
+                    int x = (int) snapshot.getLeft(slot) + getPaddingLeft();
+                    int y = (int) snapshot.getTop(slot) + getPaddingTop();
 
-                int x = (int) node.getLeft().value() + getPaddingLeft();
-                int y = (int) node.getTop().value() + getPaddingTop();
+                    child.setX(x);
+                    child.setY(y);
+                    positioned++;
+                }
+                ((LayoutParams) child.getLayoutParams()).slot = slot;
+                if (isFlattenedChild(child)) {
+                    ((CassowaryLayout) child).setChildPositionsFromCassowaryModel();
+                }
+            }
+        }
+        laidOutFrames = snapshot;
+        log("setChildPositionsFromCassowaryModel - positioned " + positioned + " of " + count + " took " + TimerUtil.since(timeBeforeSolve));
+    }
+
+    /**
+     * Switches the model to a state defined with CassowaryModel.defineState, or to its base constraints if name is
+     * null, and lays out the children in the new state. Can only be called once setup is complete.
+     */
+    public void setState(String name) {
+        if (!ownsSetUpModel()) {
+            throw new IllegalStateException("switching states requires a set up layout owning its model");
+        }
+        if (backgroundSolver != null) {
+            final String stateName = name;
+            backgroundSolver.post(new BackgroundSolver.ModelChange() {
+                @Override
+                public void apply(CassowaryModel model) {
+                    model.setState(stateName);
+                }
+            });
+            return;
+        }
+        cassowaryModel.setState(name);
+        requestLayout();
+    }
 
-                child.setX(x);
-                child.setY(y);
+    /**
+     * Starts a transaction for changing variable values. Committed values are coalesced until the next frame, when
+     * the last value of every variable is applied and the model is solved once. The children are laid out from that
+     * solution right away if the size of this layout is fixed and no child has an intrinsic size, otherwise the
+     * layout is requested.
+     */
+    public EditTransaction edit() {
+        return new EditTransaction(this);
+    }
 
+    void enqueueEdits(Collection<EditTransaction.Edit> edits) {
+        startDeferredSetup();
+        for (EditTransaction.Edit edit : edits) {
+            if (pendingEdits.put(edit.getKey(), edit) != null) {
+                coalescedEditCount++;
             }
         }
-        log("setChildPositionsFromCassowaryModel - took " + TimerUtil.since(timeBeforeSolve));
+        if (editFrameScheduler == null) {
+            editFrameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    applyPendingEdits();
+                }
+            });
+        }
+        editFrameScheduler.scheduleFrame();
+    }
+
+    private void applyPendingEdits() {
+        if (pendingEdits.isEmpty()) {
+            return;
+        }
+        if (state != State.PARSING_COMPLETE || setupTask != null) {
+            // keep the edits until the model is set up
+            editFrameScheduler.scheduleFrame();
+            return;
+        }
+        long before = System.nanoTime();
+        LinkedHashMap<String, EditTransaction.Edit> edits = pendingEdits;
+        pendingEdits = new LinkedHashMap<String, EditTransaction.Edit>();
+        appliedEditCount += edits.size();
+        if (backgroundSolver != null) {
+            for (EditTransaction.Edit edit : edits.values()) {
+                backgroundSolver.suggestValue(edit.nodeName, edit.variableName, edit.value);
+            }
+            return;
+        }
+        if (isFlattened()) {
+            // the model is solved by the layout owning it
+            for (EditTransaction.Edit edit : edits.values()) {
+                resolveNode(edit.nodeName).setVariableToValue(edit.variableName, edit.value);
+            }
+            requestLayout();
+            log("applyPendingEdits applied " + edits.size() + " edits to the shared model, took " + TimerUtil.since(before));
+            return;
+        }
+
+        // one solve for all the edits of the frame
+        FrameSnapshot previous = cassowaryModel.getSnapshot();
+        cassowaryModel.applyEdits(edits.values());
+        cassowaryModel.solve();
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
+        if (canApplyEditsWithoutMeasure(previous, snapshot)) {
+            applySnapshot(snapshot);
+        } else {
+            requestLayout();
+        }
+        log("applyPendingEdits applied " + edits.size() + " edits, " + coalescedEditCount + " coalesced so far, took " + TimerUtil.since(before));
+    }
+
+    // with a fixed size and no intrinsic sizes a measure pass would solve to the same frames
+    private boolean canApplyEditsWithoutMeasure(FrameSnapshot previous, FrameSnapshot snapshot) {
+        boolean containerSizeFixed = aspectRatioFixed ||
+                (MeasureSpec.getMode(measuredWidthSpec) == MeasureSpec.EXACTLY &&
+                 MeasureSpec.getMode(measuredHeightSpec) == MeasureSpec.EXACTLY);
+        return containerSizeFixed && laidOut && !isLayoutRequested() && breakpoints == null && !cassowaryModel.usesIntrinsicSize() &&
+                !hasFlattenedChildren() && previous != null && previous.getContainerWidth() == snapshot.getContainerWidth() &&
+                previous.getContainerHeight() == snapshot.getContainerHeight();
+    }
+
+    /**
+     * @return the number of edited values that have been applied to the model
+     */
+    public long getAppliedEditCount() {
+        return appliedEditCount;
+    }
+
+    /**
+     * @return the number of edited values that were replaced by a later value before being applied
+     */
+    public long getCoalescedEditCount() {
+        return coalescedEditCount;
+    }
+
+    /**
+     * Starts solving the model on a dedicated thread, see BackgroundSolver. Values should then be suggested through
+     * the returned solver instead of being set on nodes directly. Can only be started once setup is complete. While
+     * it runs the children are measured to their solved frames, their intrinsic sizes are not measured again.
+     */
+    public BackgroundSolver startBackgroundSolver() {
+        if (!ownsSetUpModel() || hasFlattenedChildren() || runningAnimator != null) {
+            throw new IllegalStateException("background solving requires a set up layout owning its model");
+        }
+        if (backgroundSolver == null) {
+            backgroundSolver = new BackgroundSolver(this, ensureModel());
+            solverWidthSpec = measuredWidthSpec;
+            solverHeightSpec = measuredHeightSpec;
+            solverGoneChildren = null;
+        }
+        return backgroundSolver;
+    }
+
+    public void stopBackgroundSolver() {
+        if (backgroundSolver != null) {
+            backgroundSolver.stop();
+            backgroundSolver = null;
+        }
+    }
+
+    ConstraintAnimator getRunningAnimator() {
+        return runningAnimator;
+    }
+
+    void setRunningAnimator(ConstraintAnimator animator) {
+        runningAnimator = animator;
+    }
+
+    /**
+     * Lays out the children whose frame in snapshot differs from the frame they were last positioned from, without
+     * measuring.
+     */
+    void applySnapshot(FrameSnapshot snapshot) {
+        if (laidOutFrames == null || laidOutFrames.getSlots() != snapshot.getSlots()) {
+            // the slots of the children are looked up again
+            layoutChildrenFromFrames(snapshot);
+            return;
+        }
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            int slot = ((LayoutParams) child.getLayoutParams()).slot;
+            if (child.getVisibility() != GONE && snapshot.containsSlot(slot) && snapshot.isFrameDifferent(slot, laidOutFrames)) {
+                int x = (int) snapshot.getLeft(slot) + getPaddingLeft();
+                int y = (int) snapshot.getTop(slot) + getPaddingTop();
+                child.layout(x, y, x + (int) snapshot.getWidth(slot), y + (int) snapshot.getHeight(slot));
+            }
+        }
+        laidOutFrames = snapshot;
+    }
+
+    // a solution for another size of this layout is measured before it is laid out
+    void applyBackgroundSnapshot(FrameSnapshot snapshot) {
+        if (laidOutFrames != null && (laidOutFrames.getContainerWidth() != snapshot.getContainerWidth() ||
+                laidOutFrames.getContainerHeight() != snapshot.getContainerHeight())) {
+            requestLayout();
+        } else {
+            applySnapshot(snapshot);
+        }
+    }
+
+    private boolean isFrameChanged(FrameSnapshot snapshot, int slot) {
+        return laidOutFrames == null || laidOutFrames.getSlots() != snapshot.getSlots() || snapshot.isFrameDifferent(slot, laidOutFrames);
     }
 
     @Override
@@ -198,22 +659,43 @@ public class CassowaryLayout extends ViewGroup  {
                 MeasureSpecUtils.getModeAsString(heightMeasureSpec) + " " +
                 MeasureSpec.getSize(heightMeasureSpec) + " in state " + state);
 
+        // lets an async setup that completes later request a layout, and a layout boundary measure itself again
+        saveMeasureSpec(widthMeasureSpec, heightMeasureSpec);
+
+        frameSource = FrameSource.NONE;
+        sourceFrames = null;
+
+        if (restoredState != null) {
+            if (measureFromRestoredState(widthMeasureSpec, heightMeasureSpec)) {
+                log("onMeasure from saved state took " + TimerUtil.since(before));
+                return;
+            }
+            restoredState = null;
+        }
+
+        if (deferredConstraints != null) {
+            if (measureFromPrecomputed(widthMeasureSpec, heightMeasureSpec)) {
+                log("onMeasure from precomputed frames took " + TimerUtil.since(before));
+                return;
+            }
+            startDeferredSetup();
+        }
+
         switch(state) {
             case UNINITIALIZED:
             case PARSING_CONSTRAINTS:
-                saveMeasureSpec(widthMeasureSpec, heightMeasureSpec);
-                setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
-                // wait for parsing to complete
+                measureDuringSetup(widthMeasureSpec, heightMeasureSpec);
                 break;
             case PARSING_COMPLETE:
-                if (aspectRatioFixed) {
-                    setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
-                    // make new measure spec based on aspect ratio set above
-                    cassowaryMeasure(MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.EXACTLY),
-                                    MeasureSpec.makeMeasureSpec(getMeasuredHeight(),  MeasureSpec.EXACTLY));
+                if (setupTask != null) {
+                    // the constraints are being replaced on the SetupScheduler, which owns the model until it is done
+                    if (!measureFromLiveFrames(widthMeasureSpec, heightMeasureSpec)) {
+                        measureDuringSetup(widthMeasureSpec, heightMeasureSpec);
+                    }
+                } else if (backgroundSolver != null) {
+                    measureFromBackgroundSolver(widthMeasureSpec, heightMeasureSpec);
                 } else {
-                    cassowaryMeasure(widthMeasureSpec, heightMeasureSpec);
-                    setMeasuredDimensionsFromCassowaryModel(widthMeasureSpec, heightMeasureSpec);
+                    measureSetUp(widthMeasureSpec, heightMeasureSpec);
                 }
                 break;
         }
@@ -222,6 +704,360 @@ public class CassowaryLayout extends ViewGroup  {
 
     }
 
+    private void measureDuringSetup(int widthMeasureSpec, int heightMeasureSpec) {
+        if (firstFramePolicy == FIRST_FRAME_POLICY_BLOCK && awaitSetup()) {
+            measureSetUp(widthMeasureSpec, heightMeasureSpec);
+        } else if (firstFramePolicy == FIRST_FRAME_POLICY_CACHED_MEASUREMENT && measureFromCache(widthMeasureSpec, heightMeasureSpec)) {
+            // laid out from the cached frames until parsing completes
+        } else {
+            setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
+            // wait for parsing to complete
+        }
+    }
+
+    // specs and child changes are posted to the solver thread, its solution is measured when published
+    private void measureFromBackgroundSolver(int widthMeasureSpec, int heightMeasureSpec) {
+        if (breakpoints != null) {
+            selectBreakpoint(widthMeasureSpec, heightMeasureSpec);
+        }
+        if (aspectRatioFixed) {
+            setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
+        }
+        int solvedWidthSpec = aspectRatioFixed ? MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.EXACTLY) : widthMeasureSpec;
+        int solvedHeightSpec = aspectRatioFixed ? MeasureSpec.makeMeasureSpec(getMeasuredHeight(), MeasureSpec.EXACTLY) : heightMeasureSpec;
+        if (solvedWidthSpec != solverWidthSpec || solvedHeightSpec != solverHeightSpec) {
+            solverWidthSpec = solvedWidthSpec;
+            solverHeightSpec = solvedHeightSpec;
+            final int widthMode = MeasureSpec.getMode(solvedWidthSpec);
+            final int heightMode = MeasureSpec.getMode(solvedHeightSpec);
+            final int width = MeasureSpec.getSize(solvedWidthSpec) - getPaddingLeft() - getPaddingRight();
+            final int height = MeasureSpec.getSize(solvedHeightSpec) - getPaddingTop() - getPaddingBottom();
+            backgroundSolver.post(new BackgroundSolver.ModelChange() {
+                @Override
+                public void apply(CassowaryModel model) {
+                    CassowaryModel.setMeasureSpecOnContainer(model.getContainerNode(), widthMode, width, heightMode, height);
+                }
+            });
+        }
+        postChildChanges();
+
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
+        if (snapshot != null) {
+            measureChildrenToFrames(snapshot);
+            frameSource = FrameSource.MODEL;
+            if (!aspectRatioFixed) {
+                setMeasuredDimensionsFromSnapshot(snapshot, widthMeasureSpec, heightMeasureSpec);
+            }
+        } else if (!aspectRatioFixed) {
+            setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
+        }
+        measuredWidthSpec = widthMeasureSpec;
+        measuredHeightSpec = heightMeasureSpec;
+    }
+
+    private void postChildChanges() {
+        final LinkedHashMap<String, Boolean> childChanges = pendingChildChanges;
+        pendingChildChanges = null;
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> gone = new ArrayList<String>();
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getId() != NO_ID) {
+                String name = viewIdResolver.getViewNameById(child.getId());
+                names.add(name);
+                if (child.getVisibility() == GONE) {
+                    gone.add(name);
+                }
+            }
+        }
+        boolean goneChanged = !gone.equals(solverGoneChildren);
+        if (childChanges == null && !goneChanged) {
+            return;
+        }
+        solverGoneChildren = gone;
+        backgroundSolver.post(new BackgroundSolver.ModelChange() {
+            @Override
+            public void apply(CassowaryModel model) {
+                if (childChanges != null) {
+                    applyChildChanges(model, childChanges);
+                }
+                for (String name : names) {
+                    model.setNodeGone(name, gone.contains(name));
+                }
+            }
+        });
+    }
+
+    private static void applyChildChanges(CassowaryModel model, Map<String, Boolean> childChanges) {
+        for (Map.Entry<String, Boolean> change : childChanges.entrySet()) {
+            if (change.getValue()) {
+                model.reinstateNode(change.getKey());
+            } else {
+                // the constraints of the child are reinstated if it is added again
+                model.retractNode(change.getKey());
+            }
+        }
+    }
+
+    // the last solution is shown while the constraints are replaced, for the specs it was measured for
+    private boolean measureFromLiveFrames(int widthMeasureSpec, int heightMeasureSpec) {
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
+        if (snapshot == null || !laidOut || widthMeasureSpec != measuredWidthSpec || heightMeasureSpec != measuredHeightSpec ||
+                hasFlattenedChildren()) {
+            return false;
+        }
+        int measuredWidth = getMeasuredWidth();
+        int measuredHeight = getMeasuredHeight();
+        measureFromSource(FrameSource.LIVE, snapshot);
+        setMeasuredDimension(measuredWidth, measuredHeight);
+        return true;
+    }
+
+    private void measureSetUp(int widthMeasureSpec, int heightMeasureSpec) {
+        if (breakpoints != null && !isFlattened() && !hasFlattenedChildren()) {
+            selectBreakpoint(widthMeasureSpec, heightMeasureSpec);
+            // solutions are cached with all children visible
+            FirstFrameCache.Entry solution = hasGoneChildren() ? null : activeBreakpoint.getSolution(widthMeasureSpec, heightMeasureSpec);
+            if (solution != null) {
+                log("measureSetUp - using solution cached for breakpoint " + activeBreakpoint);
+                measureFromSource(FrameSource.BREAKPOINT, solution.getFrames());
+                setMeasuredDimension(solution.getMeasuredWidth(), solution.getMeasuredHeight());
+                measuredWidthSpec = widthMeasureSpec;
+                measuredHeightSpec = heightMeasureSpec;
+                return;
+            }
+        }
+        if (restoredValues != null) {
+            applyRestoredValues();
+        }
+        if (pendingChildChanges != null) {
+            applyChildChanges(cassowaryModel, pendingChildChanges);
+            pendingChildChanges = null;
+        }
+        if (!isFlattened()) {
+            updateGoneChildren();
+        }
+        if (garbageCollectionPending) {
+            // child slots are assigned again by the layout pass that follows
+            cassowaryModel.collectGarbage();
+            garbageCollectionPending = false;
+        }
+        if (isFlattened()) {
+            flattenedMeasure(widthMeasureSpec, heightMeasureSpec);
+        } else if (aspectRatioFixed) {
+            setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
+            // make new measure spec based on aspect ratio set above
+            cassowaryMeasure(MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.EXACTLY),
+                            MeasureSpec.makeMeasureSpec(getMeasuredHeight(),  MeasureSpec.EXACTLY));
+        } else {
+            cassowaryMeasure(widthMeasureSpec, heightMeasureSpec);
+            setMeasuredDimensionsFromCassowaryModel(widthMeasureSpec, heightMeasureSpec);
+        }
+        frameSource = FrameSource.MODEL;
+        measuredWidthSpec = widthMeasureSpec;
+        measuredHeightSpec = heightMeasureSpec;
+    }
+
+    private void selectBreakpoint(int widthMeasureSpec, int heightMeasureSpec) {
+        if (activeBreakpoint == null) {
+            defaultBreakpoint = Breakpoint.createDefault(cassowaryModel);
+            activeBreakpoint = defaultBreakpoint;
+        }
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = MeasureSpec.getSize(heightMeasureSpec);
+        Breakpoint selected = defaultBreakpoint;
+        for (Breakpoint breakpoint : breakpoints) {
+            if (breakpoint.matches(width, height)) {
+                selected = breakpoint;
+                break;
+            }
+        }
+        if (selected == activeBreakpoint) {
+            return;
+        }
+        long before = System.nanoTime();
+        CassowaryModel previous = cassowaryModel;
+        activeBreakpoint = selected;
+        cassowaryModel = selected.getModel(getContext());
+        if (backgroundSolver != null) {
+            // the solver thread owns the models and carries the values over
+            backgroundSolver.rebind(cassowaryModel);
+            solverWidthSpec = -1;
+            solverHeightSpec = -1;
+            solverGoneChildren = null;
+        } else {
+            // values such as a drag position carry over to the constraints of the new breakpoint
+            cassowaryModel.applyValues(previous.getSuggestedValues());
+        }
+        layoutAllChildren = true;
+        log("selectBreakpoint - swapped to " + selected + " took " + TimerUtil.since(before));
+    }
+
+    // blocks for up to firstFrameTimeout milliseconds, completing the setup if the task finishes in time
+    private boolean awaitSetup() {
+        if (setupTask == null) {
+            return false;
+        }
+        long before = System.nanoTime();
+        boolean done;
+        try {
+            done = setupTask.await(firstFrameTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+        log("awaitSetup done " + done + " after " + TimerUtil.since(before));
+        if (!done) {
+            return false;
+        }
+        setupTask = null;
+        setupConstraints = null;
+        state = State.PARSING_COMPLETE;
+        addPendingNestedLayouts();
+        // replaced constraints may have added or collected nodes
+        layoutAllChildren = true;
+        callbackAfterSetup();
+        return true;
+    }
+
+    private boolean measureFromCache(int widthMeasureSpec, int heightMeasureSpec) {
+        // frames are cached with all children visible
+        if (constraintsKey == null || hasGoneChildren()) {
+            return false;
+        }
+        FirstFrameCache.Entry cached = FirstFrameCache.get(constraintsKey, widthMeasureSpec, heightMeasureSpec);
+        if (cached == null) {
+            // solved in an earlier run of the app
+            cached = SolvedLayoutCache.getInstance(getContext()).get(constraintsKey, widthMeasureSpec, heightMeasureSpec);
+            if (cached == null) {
+                return false;
+            }
+            FirstFrameCache.put(constraintsKey, widthMeasureSpec, heightMeasureSpec, cached);
+        }
+        measureFromSource(FrameSource.CACHED, cached.getFrames());
+        setMeasuredDimension(cached.getMeasuredWidth(), cached.getMeasuredHeight());
+        log("measureFromCache " + constraintsKey);
+        return true;
+    }
+
+    private boolean measureFromPrecomputed(int widthMeasureSpec, int heightMeasureSpec) {
+        if (hasGoneChildren()) {
+            // frames are precomputed with all children visible
+            return false;
+        } else if (aspectRatioFixed) {
+            setMeasuredDimensionsFromAspectRatio(widthMeasureSpec, heightMeasureSpec);
+        } else if (MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.EXACTLY && MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.EXACTLY) {
+            setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), MeasureSpec.getSize(heightMeasureSpec));
+        } else {
+            return false;
+        }
+        int width = getMeasuredWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getMeasuredHeight() - getPaddingTop() - getPaddingBottom();
+        FrameSnapshot frames = PrecomputedFrames.getInstance(getContext()).getFrames(precomputedConstraintsName, width, height);
+        if (frames == null) {
+            return false;
+        }
+        measureFromSource(FrameSource.PRECOMPUTED, frames);
+        return true;
+    }
+
+    // the saved frames are shown until the model has been set up, for the specs they were solved for
+    private boolean measureFromRestoredState(int widthMeasureSpec, int heightMeasureSpec) {
+        if ((state == State.PARSING_COMPLETE && !cassowaryModel.isPendingInstance()) ||
+                widthMeasureSpec != restoredState.widthMeasureSpec || heightMeasureSpec != restoredState.heightMeasureSpec) {
+            return false;
+        }
+        measureFromSource(FrameSource.RESTORED_STATE, restoredState.frames);
+        setMeasuredDimension(restoredState.measuredWidth, restoredState.measuredHeight);
+        return true;
+    }
+
+    private void applyRestoredValues() {
+        cassowaryModel.applyValues(restoredValues);
+        log("applied " + restoredValues.size() + " restored values");
+        restoredValues = null;
+    }
+
+    private void measureFromSource(FrameSource source, FrameSnapshot frames) {
+        frameSource = source;
+        sourceFrames = frames;
+        measureChildrenToFrames(frames);
+    }
+
+    private void measureChildrenToFrames(FrameSnapshot frames) {
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            int slot = frames.getSlot(viewIdResolver.getViewNameById(child.getId()));
+            if (child.getVisibility() != GONE && slot != -1) {
+                child.measure(MeasureSpec.makeMeasureSpec((int) frames.getWidth(slot), MeasureSpec.EXACTLY),
+                        MeasureSpec.makeMeasureSpec((int) frames.getHeight(slot), MeasureSpec.EXACTLY));
+            }
+        }
+    }
+
+    private void startDeferredSetup() {
+        if (deferredConstraints == null) {
+            return;
+        }
+        CharSequence[] constraints = deferredConstraints;
+        deferredConstraints = null;
+        log("startDeferredSetup");
+        if (asyncSetup) {
+            setupSolverAsync(constraints);
+        } else {
+            cassowaryModel = ModelBlueprint.forResource(getContext(), constraintsResId).newInstance();
+            state = State.PARSING_COMPLETE;
+        }
+    }
+
+    private void layoutChildrenFromFrames(FrameSnapshot frames) {
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            int slot = frames.getSlot(viewIdResolver.getViewNameById(child.getId()));
+            ((LayoutParams) child.getLayoutParams()).slot = slot;
+            if (child.getVisibility() != GONE && slot != -1) {
+                int x = (int) frames.getLeft(slot) + getPaddingLeft();
+                int y = (int) frames.getTop(slot) + getPaddingTop();
+                child.layout(x, y, x + (int) frames.getWidth(slot), y + (int) frames.getHeight(slot));
+            }
+        }
+        laidOutFrames = frames;
+    }
+
+    // the first frame laid out from the cache counts if the cached frames, shown until now, turned out to be right
+    private void recordFirstCorrectFrame(FrameSnapshot shown) {
+        long frameTime = System.nanoTime();
+        if (cachedFrameLayoutTime != -1 && shown != null && matchesSolvedFrames(shown)) {
+            frameTime = cachedFrameLayoutTime;
+        }
+        timeToFirstCorrectFrame = (frameTime - creationTime) / 1000000;
+        log("first correct frame after " + timeToFirstCorrectFrame + " ms with first frame policy " + firstFramePolicy);
+    }
+
+    private boolean matchesSolvedFrames(FrameSnapshot cached) {
+        FrameSnapshot solved = cassowaryModel.getSnapshot();
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                String name = viewIdResolver.getViewNameById(child.getId());
+                int cachedSlot = cached.getSlot(name);
+                int solvedSlot = solved.getSlot(name);
+                if (cachedSlot == -1 || solvedSlot == -1 ||
+                        cached.getLeft(cachedSlot) != solved.getLeft(solvedSlot) ||
+                        cached.getTop(cachedSlot) != solved.getTop(solvedSlot) ||
+                        cached.getWidth(cachedSlot) != solved.getWidth(solvedSlot) ||
+                        cached.getHeight(cachedSlot) != solved.getHeight(solvedSlot)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns a set of layout parameters with a width of
      * {@link android.view.ViewGroup.LayoutParams#WRAP_CONTENT},
@@ -236,11 +1072,124 @@ public class CassowaryLayout extends ViewGroup  {
     @Override
     protected void onLayout(boolean changed, int l, int t,
                             int r, int b) {
-        if (state == State.PARSING_COMPLETE) {
-            layoutChildren(changed, l, t, r, b);
+        if (frameSource == FrameSource.MODEL && state == State.PARSING_COMPLETE && setupTask == null) {
+            layoutFromModel(changed, l, t, r, b);
+        } else if (sourceFrames != null) {
+            layoutChildrenFromFrames(sourceFrames);
+            if (frameSource == FrameSource.CACHED && cachedFrameLayoutTime == -1) {
+                cachedFrameLayoutTime = System.nanoTime();
+            } else if ((frameSource == FrameSource.RESTORED_STATE || frameSource == FrameSource.PRECOMPUTED) && timeToFirstCorrectFrame == -1) {
+                timeToFirstCorrectFrame = (System.nanoTime() - creationTime) / 1000000;
+                log("first correct frame after " + timeToFirstCorrectFrame + " ms from " + frameSource);
+            }
+            if (frameSource == FrameSource.RESTORED_STATE && state == State.PARSING_COMPLETE) {
+                // the model is set up when it is next measured
+                restoredState = null;
+            }
+        }
+    }
+
+    private void layoutFromModel(boolean changed, int l, int t, int r, int b) {
+        FrameSnapshot previous = laidOutFrames;
+        layoutChildren(changed || layoutAllChildren, l, t, r, b);
+        // a solve that changes no frame publishes no new snapshot
+        boolean framesChanged = laidOutFrames != previous;
+        layoutAllChildren = false;
+        laidOut = true;
+        if (backgroundSolver != null) {
+            // the solutions are cached by the thread owning the model
+            return;
+        }
+        if (activeBreakpoint != null && !hasGoneChildren()) {
+            activeBreakpoint.putSolution(measuredWidthSpec, measuredHeightSpec, getMeasuredWidth(), getMeasuredHeight());
+        }
+        if (timeToFirstCorrectFrame == -1) {
+            recordFirstCorrectFrame(previous);
+        }
+        // the cached frames are those of the base constraints, and not of content measured by the children
+        // the entry is only built and compared when the frames or the specs have changed since the last one
+        if (firstFramePolicy == FIRST_FRAME_POLICY_CACHED_MEASUREMENT && constraintsKey != null && !isFlattened() &&
+                activeBreakpoint == defaultBreakpoint && cassowaryModel.getState() == null && !hasGoneChildren() &&
+                (framesChanged || measuredWidthSpec != cachedWidthSpec || measuredHeightSpec != cachedHeightSpec) &&
+                !cassowaryModel.usesIntrinsicSize()) {
+            cachedWidthSpec = measuredWidthSpec;
+            cachedHeightSpec = measuredHeightSpec;
+            FirstFrameCache.Entry changedEntry = FirstFrameCache.put(constraintsKey, measuredWidthSpec, measuredHeightSpec,
+                    getMeasuredWidth(), getMeasuredHeight(), cassowaryModel.getSnapshot());
+            if (changedEntry != null) {
+                SolvedLayoutCache.getInstance(getContext()).put(constraintsKey, measuredWidthSpec, measuredHeightSpec, changedEntry);
+            }
+        }
+    }
+
+    @Override
+    public void requestLayout() {
+        if (layoutBoundary && canLayoutLocally()) {
+            log("requestLayout - handling locally");
+            // mark this layout as needing measure and layout without propagating the request to the parent
+            forceLayout();
+            if (!localLayoutPending) {
+                localLayoutPending = true;
+                post(localLayoutRunnable);
+            }
+        } else {
+            super.requestLayout();
+        }
+    }
+
+    @Override
+    public void onViewAdded(View child) {
+        super.onViewAdded(child);
+        if (child instanceof CassowaryLayout && ((CassowaryLayout) child).isFlattenIntoParent()) {
+            addNestedLayout((CassowaryLayout) child);
+        }
+        if (ownsLiveModel() && child.getId() != NO_ID) {
+            queueChildChange(child, true);
         }
     }
 
+    @Override
+    public void onViewRemoved(View child) {
+        super.onViewRemoved(child);
+        if (pendingNestedLayouts != null) {
+            pendingNestedLayouts.remove(child);
+        }
+        if (isFlattenedChild(child)) {
+            removeNestedLayoutFromModel((CassowaryLayout) child);
+        }
+        if (ownsLiveModel() && child.getId() != NO_ID) {
+            queueChildChange(child, false);
+            garbageCollectionPending = true;
+        }
+    }
+
+    // applied by the thread owning the model, which may be the setup task or a background solver right now
+    private void queueChildChange(View child, boolean added) {
+        if (pendingChildChanges == null) {
+            pendingChildChanges = new LinkedHashMap<String, Boolean>();
+        }
+        String name = viewIdResolver.getViewNameById(child.getId());
+        // a child removed and added again keeps its constraints, the last change decides
+        pendingChildChanges.remove(name);
+        pendingChildChanges.put(name, added);
+    }
+
+    private void updateGoneChildren() {
+        boolean hadGoneNodes = cassowaryModel.hasGoneNodes();
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            boolean gone = child.getVisibility() == GONE;
+            if ((gone || hadGoneNodes) && child.getId() != NO_ID && !isFlattenedChild(child)) {
+                cassowaryModel.setNodeGone(viewIdResolver.getViewNameById(child.getId()), gone);
+            }
+        }
+    }
+
+    private boolean ownsLiveModel() {
+        return state == State.PARSING_COMPLETE && !isFlattened() && !cassowaryModel.isPendingInstance();
+    }
+
     @Override
     public ViewGroup.LayoutParams generateLayoutParams(AttributeSet attrs) {
         return new CassowaryLayout.LayoutParams(getContext(), attrs);
@@ -266,6 +1215,7 @@ public class CassowaryLayout extends ViewGroup  {
         long timeBeforeSolve = System.nanoTime();
 
         int parentWidthMode = MeasureSpec.getMode(widthMeasureSpec);
+        FrameSnapshot snapshot = cassowaryModel.getCurrentSnapshot();
 
         final int size = getChildCount();
 
@@ -273,10 +1223,11 @@ public class CassowaryLayout extends ViewGroup  {
             final View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
 
-                Node node = getNodeById(child.getId());
+                ChildNode node = getNodeById(child.getId());
+                LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
 
-                int nodeHeight = (int) node.getVariableValue(Node.HEIGHT);
-                int nodeWidth = (int) node.getVariableValue(Node.WIDTH);
+                int nodeHeight = isSolved(snapshot, node) ? (int) snapshot.getHeight(node.getSlot()) : 0;
+                int nodeWidth = isSolved(snapshot, node) ? (int) snapshot.getWidth(node.getSlot()) : 0;
 
                 int widthMode;
                 if (node.hasIntrinsicWidth()) {
@@ -297,18 +1248,155 @@ public class CassowaryLayout extends ViewGroup  {
                 // If the parent's width is unspecified, infer it from the container node
                 if (parentWidthMode == MeasureSpec.UNSPECIFIED) {
                     widthMode = MeasureSpec.AT_MOST;
-                    nodeWidth = (int) cassowaryModel.getContainerNode().getWidth().value();
+                    nodeWidth = (int) getSolvedContentWidth(cassowaryModel.getSnapshot());
+                }
+
+                boolean heightForWidth = widthMode == MeasureSpec.EXACTLY && heightMode == MeasureSpec.UNSPECIFIED;
+                layoutParams.intrinsicHeightWidth = heightForWidth ? nodeWidth : -1;
+
+                // the height of a flattened layout depends on the shared model, not just on its width
+                if (heightForWidth && !isFlattenedChild(child)) {
+                    int cachedHeight = layoutParams.heightForWidthCache.get(nodeWidth, -1);
+                    if (cachedHeight != -1) {
+                        intrinsicCacheHits++;
+                        node.setIntrinsicHeight(cachedHeight);
+                        continue;
+                    }
+                    intrinsicCacheMisses++;
+                }
+
+                int childHeightSpec = makeChildMeasureSpec(nodeHeight, heightMode, layoutParams.height);
+                int childWidthSpec = makeChildMeasureSpec(nodeWidth, widthMode, layoutParams.width);
+
+                log("child " + viewIdResolver.getViewNameById(child.getId()) + " width " + MeasureSpecUtils.getModeAsString(childWidthSpec) + " " + nodeWidth + " height " + MeasureSpecUtils.getModeAsString(childHeightSpec) + " " + nodeHeight);
+                child.measure(childWidthSpec, childHeightSpec);
+
+                if (heightForWidth && !isFlattenedChild(child)) {
+                    layoutParams.cacheHeightForWidth(nodeWidth, child.getMeasuredHeight());
+                }
+                if (node.hasIntrinsicHeight()) {
+                    node.setIntrinsicHeight(child.getMeasuredHeight());
+                }
+                if (node.hasIntrinsicWidth()) {
+                    node.setIntrinsicWidth(child.getMeasuredWidth());
                 }
+            }
+        }
+        log("measureChildrenUsingCassowaryModel took " + TimerUtil.since(timeBeforeSolve));
+    }
+
+    // a node that has not been solved since its slot was assigned has an empty frame, as its variables would
+    private static boolean isSolved(FrameSnapshot snapshot, ChildNode node) {
+        return snapshot != null && snapshot.containsSlot(node.getSlot());
+    }
+
+    // node sizes are within the padding already, so unlike measureChild no padding is subtracted
+    private static int makeChildMeasureSpec(int size, int mode, int childDimension) {
+        if (mode == MeasureSpec.EXACTLY) {
+            return MeasureSpec.makeMeasureSpec(size, MeasureSpec.EXACTLY);
+        }
+        return getChildMeasureSpec(MeasureSpec.makeMeasureSpec(size, mode), 0, childDimension);
+    }
+
+    private boolean isIntrinsicHeightStable() {
+        FrameSnapshot snapshot = cassowaryModel.getCurrentSnapshot();
+        final int size = getChildCount();
+        for (int i = 0; i < size; ++i) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                LayoutParams layoutParams = (LayoutParams) child.getLayoutParams();
+                if (layoutParams.intrinsicHeightWidth != -1) {
+                    ChildNode node = getNodeById(child.getId());
+                    int nodeWidth = isSolved(snapshot, node) ? (int) snapshot.getWidth(node.getSlot()) : 0;
+                    if (nodeWidth != layoutParams.intrinsicHeightWidth) {
+                        return false;
+                    }
+                }
+                if (isFlattenedChild(child) && !((CassowaryLayout) child).isIntrinsicHeightStable()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // children are laid out at their solved size, so their contents are measured for it
+    private void measureChildrenToSolvedSize() {
+        FrameSnapshot snapshot = cassowaryModel.getCurrentSnapshot();
+        final int size = getChildCount();
+        for (int i = 0; i < size; ++i) {
+            final View child = getChildAt(i);
+            if (child.getVisibility() != GONE) {
+                ChildNode node = getNodeById(child.getId());
+                int nodeWidth = isSolved(snapshot, node) ? (int) snapshot.getWidth(node.getSlot()) : 0;
+                int nodeHeight = isSolved(snapshot, node) ? (int) snapshot.getHeight(node.getSlot()) : 0;
+                if (child.getMeasuredWidth() != nodeWidth || child.getMeasuredHeight() != nodeHeight) {
+                    child.measure(MeasureSpec.makeMeasureSpec(nodeWidth, MeasureSpec.EXACTLY),
+                            MeasureSpec.makeMeasureSpec(nodeHeight, MeasureSpec.EXACTLY));
+                }
+            }
+        }
+    }
+
+    private void invalidateIntrinsicHeightCaches() {
+        final int size = getChildCount();
+        for (int i = 0; i < size; ++i) {
+            final View child = getChildAt(i);
+            // a child that has requested layout may have changed its content
+            if (child.isLayoutRequested()) {
+                ((LayoutParams) child.getLayoutParams()).heightForWidthCache.clear();
+            }
+            if (isFlattenedChild(child)) {
+                ((CassowaryLayout) child).invalidateIntrinsicHeightCaches();
+            }
+        }
+    }
 
+    // only the intrinsic sizes of children feed back into the model, and not at all if the size is fixed by the specs
+    private boolean canLayoutLocally() {
+        if (state != State.PARSING_COMPLETE || isFlattened() || !laidOut || !isMeasureSpecSet() || (isLayoutRequested() && !localLayoutPending) ||
+                setupTask != null || backgroundSolver != null || pendingChildChanges != null) {
+            // the model is owned by another thread, or children have been added or removed
+            return false;
+        }
 
-                int childHeightSpec = MeasureSpec.makeMeasureSpec(nodeHeight, heightMode);
-                int childWidthSpec = MeasureSpec.makeMeasureSpec(nodeWidth, widthMode);
+        boolean containerSizeFixed = aspectRatioFixed ||
+                (MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.EXACTLY &&
+                 MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.EXACTLY);
 
-                log("child " + viewIdResolver.getViewNameById(child.getId()) + " width " + MeasureSpecUtils.getModeAsString(childWidthSpec) + " " + nodeWidth + " height " + MeasureSpecUtils.getModeAsString(childHeightSpec) + " " + nodeHeight);
-                measureChild(child, childWidthSpec, childHeightSpec);
+        boolean childRequestedLayout = false;
+        int count = getChildCount();
+        for (int i = 0; i < count; i++) {
+            View child = getChildAt(i);
+            if (child.getId() != NO_ID && !isFlattenedChild(child) &&
+                    (child.getVisibility() == GONE) != cassowaryModel.isNodeGone(viewIdResolver.getViewNameById(child.getId()))) {
+                // the constraints of the child are swapped for their fallbacks, which may resize this layout
+                return false;
+            }
+            if (child.isLayoutRequested()) {
+                childRequestedLayout = true;
+                if (!containerSizeFixed) {
+                    Node node = getNodeById(child.getId());
+                    if (node.hasIntrinsicWidth() || node.hasIntrinsicHeight()) {
+                        return false;
+                    }
+                }
             }
         }
-        log("measureChildrenUsingCassowaryModel took " + TimerUtil.since(timeBeforeSolve));
+        return childRequestedLayout;
+    }
+
+    private void layoutLocally() {
+        ViewParent parent = getParent();
+        if (!isLayoutRequested() || (parent != null && parent.isLayoutRequested())) {
+            // a regular layout pass has already taken care of the request, or is about to
+            return;
+        }
+        long before = System.nanoTime();
+        measure(widthMeasureSpec, heightMeasureSpec);
+        layout(getLeft(), getTop(), getRight(), getBottom());
+        invalidate();
+        log("layoutLocally took " + TimerUtil.since(before));
     }
 
     private boolean saveMeasureSpec(int widthMeasureSpec, int heightMeasureSpec) {
@@ -333,53 +1421,6 @@ public class CassowaryLayout extends ViewGroup  {
         }
     }
 
-    private HashMap<String, Integer> getIntrinsicHeights() {
-        HashMap<String, Integer> intrinsicHeights = new HashMap<String, Integer>();
-
-        int count = getChildCount();
-        for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
-
-            if (child.getVisibility() != GONE) {
-                String viewName = viewIdResolver.getViewNameById(child.getId());
-                Node node = cassowaryModel.getNodeByName(viewName);
-                if (node.hasIntrinsicHeight()) {
-                    int childHeight = child.getMeasuredHeight();
-                    intrinsicHeights.put(viewName, childHeight);
-                }
-            }
-        }
-        return intrinsicHeights;
-    }
-
-    private HashMap<String, Integer> getIntrinsicWidths() {
-        HashMap<String, Integer> intrinsicWidths = new HashMap<String, Integer>();
-
-        int count = getChildCount();
-        for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
-
-            if (child.getVisibility() != GONE) {
-                String viewName = viewIdResolver.getViewNameById(child.getId());
-                Node node = cassowaryModel.getNodeByName(viewName);
-                if (node.hasIntrinsicWidth()) {
-                    int childWidth = child.getMeasuredWidth();
-                    intrinsicWidths.put(viewName, childWidth);
-                }
-            }
-        }
-        return intrinsicWidths;
-    }
-
-    private void setVariableToValue(String variableName, HashMap<String, Integer> nodesMap) {
-        Iterator<Map.Entry<String, Integer>> iterator = nodesMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Integer> entry = iterator.next();
-            Node node = cassowaryModel.getNodeByName(entry.getKey());
-            node.setVariableToValue(variableName, entry.getValue());
-        }
-    }
-
     private void cassowaryMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         long timeBeforeSolve = System.nanoTime();
 
@@ -392,28 +1433,48 @@ public class CassowaryLayout extends ViewGroup  {
                 MeasureSpec.getSize(heightMeasureSpec));
 
 
+        invalidateIntrinsicHeightCaches();
+        measureRounds = 0;
+        intrinsicCacheHits = 0;
+        intrinsicCacheMisses = 0;
+
         cassowaryModel.solve();
-        measureChildrenUsingNodes(widthMeasureSpec, heightMeasureSpec);
-        setVariableToValue(ChildNode.INTRINSIC_HEIGHT, getIntrinsicHeights());
-        setVariableToValue(ChildNode.INTRINSIC_WIDTH, getIntrinsicWidths());
-        cassowaryModel.solve();
 
-        //Here we update intrinsic height and width for container node, which means WrapContent.
+        // children with an intrinsic height are measured at their solved width, which may in turn change once the
+        // intrinsic heights are fed back into the model, so iterate until the widths are stable
+        boolean stable = false;
+        while (!stable && measureRounds < maxMeasureRounds) {
+            measureChildrenUsingNodes(widthMeasureSpec, heightMeasureSpec);
+            cassowaryModel.solve();
+            measureRounds++;
+            stable = isIntrinsicHeightStable();
+        }
+        measureChildrenToSolvedSize();
+        log("cassowaryMeasure rounds " + measureRounds + " stable " + stable + " intrinsic cache hits " + intrinsicCacheHits + " misses " + intrinsicCacheMisses);
+
+        updateContainerIntrinsicSize();
+        log("cassowaryMeasure took " + TimerUtil.since(timeBeforeSolve));
+    }
+
+    //Here we update intrinsic height and width for container node, which means WrapContent.
+    private void updateContainerIntrinsicSize() {
         int containerIntrinsicHeight = 0;
         int containerIntrinsicWidth = 0;
+        FrameSnapshot snapshot = cassowaryModel.getCurrentSnapshot();
         int count = getChildCount();
         for (int i = 0; i < count; i++) {
             View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
-                String viewName = viewIdResolver.getViewNameById(child.getId());
-                Node node = cassowaryModel.getNodeByName(viewName);
-                containerIntrinsicHeight = Math.max((int)node.getBottom().value(), containerIntrinsicHeight);
-                containerIntrinsicWidth = Math.max((int)node.getRight().value(), containerIntrinsicWidth);
+                ChildNode node = getNodeById(child.getId());
+                if (isSolved(snapshot, node)) {
+                    int slot = node.getSlot();
+                    containerIntrinsicHeight = Math.max((int) (snapshot.getTop(slot) + snapshot.getHeight(slot)), containerIntrinsicHeight);
+                    containerIntrinsicWidth = Math.max((int) (snapshot.getLeft(slot) + snapshot.getWidth(slot)), containerIntrinsicWidth);
+                }
             }
         }
-        cassowaryModel.getContainerNode().setIntrinsicHeight(containerIntrinsicHeight);
-        cassowaryModel.getContainerNode().setIntrinsicWidth(containerIntrinsicWidth);
-        log("cassowaryMeasure took " + TimerUtil.since(timeBeforeSolve));
+        getContainerNode().setIntrinsicHeight(containerIntrinsicHeight);
+        getContainerNode().setIntrinsicWidth(containerIntrinsicWidth);
     }
 
     private void setMeasureSpecOnCassowaryModel(int widthMeasureSpec, int heightMeasureSpec) {
@@ -425,48 +1486,246 @@ public class CassowaryLayout extends ViewGroup  {
     }
 
     private void setMeasureSpecOnCassowaryModel(int heightMode, int widthMode, int heightWithoutPadding, int widthWithoutPadding) {
-        if (heightMode == MeasureSpec.AT_MOST) {
-            cassowaryModel.getContainerNode().setVariableToAtMost(Node.HEIGHT, heightWithoutPadding);
-        } else if (heightMode == MeasureSpec.EXACTLY) {
-            cassowaryModel.getContainerNode().setVariableToValue(Node.HEIGHT, heightWithoutPadding);
-        }
-
-        if (widthMode == MeasureSpec.AT_MOST) {
-            cassowaryModel.getContainerNode().setVariableToAtMost(Node.WIDTH, widthWithoutPadding);
-        } else {
-            cassowaryModel.getContainerNode().setVariableToValue(Node.WIDTH, widthWithoutPadding);
-        }
+        CassowaryModel.setMeasureSpecOnContainer(getContainerNode(), widthMode, widthWithoutPadding, heightMode, heightWithoutPadding);
     }
 
     private void parseConstraintsOnBackgroundsThread(final CharSequence[] constraints, final Runnable callback) {
-        executorService.submit(new Runnable() {
+        final CassowaryModel model = ensureModel();
+        final int generation = ++setupGeneration;
+        if (setupTask != null) {
+            setupTask.cancel();
+        }
+        setupTask = SetupScheduler.getInstance().submit(new Runnable() {
             @Override
             public void run() {
-                cassowaryModel.addConstraints(constraints);
-                cassowaryModel.solve();
-                handler.postAtFrontOfQueue(callback);
+                // the task owns the model until the completion is posted, the monitor only orders setups of one model
+                synchronized (model) {
+                    if (generation != setupGeneration) {
+                        return;
+                    }
+                    // a model that has been set up before only gets the constraints that changed
+                    model.replaceConstraints(constraints);
+                    model.solve();
+                }
+                handler.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cassowaryModel != model || setupTask == null || generation != setupGeneration) {
+                            // setup was completed by a measure pass waiting for it, or cancelled
+                            return;
+                        }
+                        setupTask = null;
+                        setupConstraints = null;
+                        callback.run();
+                    }
+                });
             }
-        });
+        }, getSetupPriority());
+    }
+
+    private int getSetupPriority() {
+        if (getWindowToken() == null) {
+            return SetupScheduler.PRIORITY_DETACHED;
+        }
+        return isShown() ? SetupScheduler.PRIORITY_VISIBLE : SetupScheduler.PRIORITY_ATTACHED;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        Parcelable superState = super.onSaveInstanceState();
+        // frames are restored under the key of the constraints with all children visible
+        if (state != State.PARSING_COMPLETE || setupTask != null || !laidOut || isFlattened() || constraintsResId == 0 || cassowaryModel.isPendingInstance() ||
+                activeBreakpoint != defaultBreakpoint || hasGoneChildren()) {
+            return superState;
+        }
+        long before = System.nanoTime();
+        Map<String, Double> values = backgroundSolver != null ? backgroundSolver.getSuggestedValues() : cassowaryModel.getSuggestedValues();
+        SavedState savedState = new SavedState(superState, getConstraintsKey(), measuredWidthSpec, measuredHeightSpec,
+                getMeasuredWidth(), getMeasuredHeight(), cassowaryModel.getSnapshot(), values);
+        log("onSaveInstanceState took " + TimerUtil.since(before));
+        return savedState;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable parcelable) {
+        if (!(parcelable instanceof SavedState)) {
+            super.onRestoreInstanceState(parcelable);
+            return;
+        }
+        SavedState savedState = (SavedState) parcelable;
+        super.onRestoreInstanceState(savedState.getSuperState());
+        if (isFlattened() || constraintsResId == 0 || !savedState.constraintsKey.equals(getConstraintsKey())) {
+            log("onRestoreInstanceState - constraints changed, ignoring saved state");
+            return;
+        }
+        restoredValues = savedState.suggestedValues;
+        if (state != State.PARSING_COMPLETE || cassowaryModel.isPendingInstance()) {
+            restoredState = savedState;
+        }
+        requestLayout();
+    }
+
+    private String getConstraintsKey() {
+        if (constraintsKey == null) {
+            constraintsKey = SolvedLayoutCache.hashConstraints(getResources().getTextArray(constraintsResId));
+        }
+        return constraintsKey;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        MemoryTrimmer.getInstance().removeDetachedLayout(this);
+        if (state == State.UNINITIALIZED && recycleModel && setupConstraints == null && deferredConstraints == null && !isFlattened() && constraintsResId != 0) {
+            // the model was released to the pool when detached
+            CassowaryModel pooledModel = ModelPool.getInstance().acquire(constraintsResId);
+            if (pooledModel != null) {
+                log("onAttachedToWindow - adopting pooled model");
+                cassowaryModel = pooledModel;
+                state = State.PARSING_COMPLETE;
+                addPendingNestedLayouts();
+                requestLayout();
+            } else if (asyncSetup) {
+                setupSolverAsync(getResources().getTextArray(constraintsResId));
+            } else {
+                cassowaryModel = ModelBlueprint.forResource(getContext(), constraintsResId).newInstance();
+                state = State.PARSING_COMPLETE;
+                requestLayout();
+            }
+        } else if (state != State.PARSING_CONSTRAINTS && setupConstraints != null && setupTask == null) {
+            log("onAttachedToWindow - resubmitting cancelled setup");
+            setupSolverAsync(setupConstraints);
+        } else if (setupTask != null) {
+            setupTask.setPriority(getSetupPriority());
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // before the model is released, as it stops editing it
+        if (runningAnimator != null) {
+            runningAnimator.cancel();
+        }
+        stopBackgroundSolver();
+        if (setupTask != null && setupTask.cancel()) {
+            log("onDetachedFromWindow - cancelled setup");
+            // setupConstraints are kept so that setup can be resubmitted when attached again
+            setupTask = null;
+            if (state == State.PARSING_CONSTRAINTS) {
+                state = State.UNINITIALIZED;
+            }
+        } else if (canRecycleModel()) {
+            log("onDetachedFromWindow - releasing model to pool");
+            ModelPool.getInstance().release(getContext(), constraintsResId, cassowaryModel);
+            cassowaryModel = null;
+            state = State.UNINITIALIZED;
+        } else if (state == State.PARSING_COMPLETE) {
+            MemoryTrimmer.getInstance().addDetachedLayout(getContext(), this);
+        }
+    }
+
+    /**
+     * Replaces the model of a detached layout with an instance of a blueprint of its compiled constraints, so that its
+     * solver can be collected. The values set on the model are applied again when the layout is next measured.
+     * @return false if the layout is attached or its model can not be rebuilt
+     */
+    boolean releaseSolver() {
+        if (getWindowToken() != null || state != State.PARSING_COMPLETE || setupTask != null || isFlattened() || hasFlattenedChildren() ||
+                backgroundSolver != null || breakpoints != null || cassowaryModel.isPendingInstance() || !cassowaryModel.isRebuildable()) {
+            return false;
+        }
+        long before = System.nanoTime();
+        // values set on the model since a restore take precedence over the restored ones
+        Map<String, Double> values = new HashMap<String, Double>();
+        if (restoredValues != null) {
+            values.putAll(restoredValues);
+        }
+        values.putAll(cassowaryModel.getSuggestedValues());
+        restoredValues = values.isEmpty() ? null : values;
+        cassowaryModel = ModelBlueprint.of(getContext(), cassowaryModel.getCompiledConstraints(), cassowaryModel.getSnapshot()).newInstance();
+        layoutAllChildren = true;
+        log("releaseSolver took " + TimerUtil.since(before));
+        return true;
+    }
+
+    /**
+     * @return the estimated memory retained by the model of this layout, see CassowaryModel.getRetainedBytes
+     */
+    public long getRetainedBytes() {
+        CassowaryModel model = cassowaryModel;
+        return model == null ? 0 : model.getRetainedBytes();
+    }
+
+    private boolean canRecycleModel() {
+        if (!recycleModel || constraintsResId == 0 || constraintsReplaced || state != State.PARSING_COMPLETE || isFlattened() ||
+                breakpoints != null) {
+            return false;
+        }
+        // the constraints of flattened children are part of the model
+        return !hasFlattenedChildren();
+    }
+
+    private boolean hasGoneChildren() {
+        for (int i = 0; i < getChildCount(); i++) {
+            if (getChildAt(i).getVisibility() == GONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasFlattenedChildren() {
+        for (int i = 0; i < getChildCount(); i++) {
+            if (isFlattenedChild(getChildAt(i))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void setMeasuredDimensionsFromCassowaryModel(int widthMeasureSpec, int heightMeasureSpec) {
         cassowaryModel.solve();
+        setMeasuredDimensionsFromSnapshot(cassowaryModel.getSnapshot(), widthMeasureSpec, heightMeasureSpec);
+    }
 
+    private void setMeasuredDimensionsFromSnapshot(FrameSnapshot snapshot, int widthMeasureSpec, int heightMeasureSpec) {
         int resolvedWidth = -1;
         int resolvedHeight = -1;
         int heightMode = MeasureSpec.getMode(heightMeasureSpec);
         int widthMode = MeasureSpec.getMode(widthMeasureSpec);
 
         if (widthMode == MeasureSpec.AT_MOST || widthMode == MeasureSpec.UNSPECIFIED) {
-            resolvedWidth = (int) cassowaryModel.getContainerNode().getWidth().value() + getPaddingLeft() + getPaddingRight();
+            resolvedWidth = (int) snapshot.getContainerWidth() + getPaddingLeft() + getPaddingRight();
         }
 
         if (heightMode == MeasureSpec.AT_MOST || heightMode == MeasureSpec.UNSPECIFIED) {
-            resolvedHeight = (int) cassowaryModel.getContainerNode().getHeight().value() + getPaddingTop() + getPaddingBottom();
+            resolvedHeight = (int) snapshot.getContainerHeight() + getPaddingTop() + getPaddingBottom();
         }
         setMeasuredDimension(resolvedWidth, resolvedHeight);
     }
 
+    // the container of a flattened layout is its node in the shared model without padding, see addNestedConstraints
+    private float getSolvedContentWidth(FrameSnapshot snapshot) {
+        if (snapshot == null) {
+            return 0;
+        } else if (!isFlattened()) {
+            return snapshot.getContainerWidth();
+        }
+        int slot = snapshot.getSlot(nodeNamespace);
+        return slot == -1 ? 0 : snapshot.getWidth(slot) - getPaddingLeft() - getPaddingRight();
+    }
+
+    private float getSolvedContentHeight(FrameSnapshot snapshot) {
+        if (snapshot == null) {
+            return 0;
+        } else if (!isFlattened()) {
+            return snapshot.getContainerHeight();
+        }
+        int slot = snapshot.getSlot(nodeNamespace);
+        return slot == -1 ? 0 : snapshot.getHeight(slot) - getPaddingTop() - getPaddingBottom();
+    }
+
     private double getAspectRatio() {
         return getAspectRatioWidthFactor() / getAspectRatioHeightFactor();
     }
@@ -526,47 +1785,51 @@ public class CassowaryLayout extends ViewGroup  {
 
         long timeBeforeSolve = System.nanoTime();
 
-        cassowaryModel.solve();
+        if (!isFlattened() && backgroundSolver == null) {
+            // a flattened layout is solved by the layout owning the model, a background solver solves on its thread
+            cassowaryModel.solve();
+        }
+
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
 
         log(
-                       " container height " + cassowaryModel.getContainerNode().getHeight().value() +
-                       " container width " + cassowaryModel.getContainerNode().getWidth().value() +
-                       " container center x " + cassowaryModel.getContainerNode().getCenterX().value() +
-                       " container center y " + cassowaryModel.getContainerNode().getCenterY().value()
+                       " container height " + getSolvedContentHeight(snapshot) +
+                       " container width " + getSolvedContentWidth(snapshot)
                 );
         int count = getChildCount();
+        int laidOut = 0;
 
         for (int i = 0; i < count; i++) {
             View child = getChildAt(i);
             if (child.getVisibility() != GONE) {
-                int childId = child.getId();
-                Node node = getNodeById(childId);
-
-                int x = (int) node.getLeft().value() + getPaddingLeft();
-                int y = (int) node.getTop().value() + getPaddingTop();
-
-                int width = (int) node.getWidth().value();
-                int height = (int) node.getHeight().value();
-                
                 String childName = viewIdResolver.getViewNameById(child.getId());
-                log("child " + childName  + " x " + x + " y " + y + " width " + width + " height " + height);
+                // a child no constraint refers to has no frame
+                int slot = snapshot.getSlot(isFlattened() ? nodeNamespace + CassowaryModel.NAMESPACE_SEPARATOR + childName : childName);
+                ((LayoutParams) child.getLayoutParams()).slot = slot;
 
-                if (node.hasIntrinsicHeight()) {
-                    log("child " + childName  + " intrinsic height " + node.getIntrinsicHeight().value());
+                if (slot == -1) {
+                    continue;
                 }
 
-                if (node.hasVariable(Node.CENTERX)) {
-                    log("child " + childName  + " centerX " + node.getVariable(Node.CENTERX).value());
+                // children whose frame is unchanged and that have not requested layout themselves can be skipped
+                if (!changed && !child.isLayoutRequested() && !isFrameChanged(snapshot, slot) && !isFlattenedChild(child)) {
+                    continue;
                 }
 
-                if (node.hasVariable(Node.CENTERY)) {
-                    log("child " + childName + " centerY " + node.getVariable(Node.CENTERY).value());
-                }
+                int x = (int) snapshot.getLeft(slot) + getPaddingLeft();
+                int y = (int) snapshot.getTop(slot) + getPaddingTop();
+
+                int width = (int) snapshot.getWidth(slot);
+                int height = (int) snapshot.getHeight(slot);
+
+                log("child " + childName  + " x " + x + " y " + y + " width " + width + " height " + height);
 
                 child.layout(x, y, x + width ,y + height);
+                laidOut++;
             }
         }
-        log("onLayout - took " + TimerUtil.since(timeBeforeSolve));
+        laidOutFrames = snapshot;
+        log("onLayout - laid out " + laidOut + " of " + count + " took " + TimerUtil.since(timeBeforeSolve));
     }
 
     private void readConstraintsFromXml(AttributeSet attrs) {
@@ -577,17 +1840,61 @@ public class CassowaryLayout extends ViewGroup  {
 
         try {
             final CharSequence[] constraints = a.getTextArray(R.styleable.CassowaryLayout_constraints);
+            constraintsResId = a.getResourceId(R.styleable.CassowaryLayout_constraints, 0);
 
             asyncSetup = a.getBoolean(R.styleable.CassowaryLayout_asyncSetup, asyncSetup);
             aspectRatioFixed = a.getBoolean(R.styleable.CassowaryLayout_aspectRatioFixed, aspectRatioFixed);
             aspectRatioWidthFactor = a.getFloat(R.styleable.CassowaryLayout_aspectRatioWidthFactor, aspectRatioWidthFactor);
             aspectRatioHeightFactor = a.getFloat(R.styleable.CassowaryLayout_aspectRatioHeightFactor, aspectRatioHeightFactor);
+            layoutBoundary = a.getBoolean(R.styleable.CassowaryLayout_layoutBoundary, layoutBoundary);
+            flattenIntoParent = a.getBoolean(R.styleable.CassowaryLayout_flattenIntoParent, flattenIntoParent);
+            recycleModel = a.getBoolean(R.styleable.CassowaryLayout_recycleModel, recycleModel);
+            firstFramePolicy = a.getInt(R.styleable.CassowaryLayout_firstFramePolicy, firstFramePolicy);
+            firstFrameTimeout = a.getInt(R.styleable.CassowaryLayout_firstFrameTimeout, firstFrameTimeout);
+            setMaxMeasureRounds(a.getInt(R.styleable.CassowaryLayout_maxMeasureRounds, maxMeasureRounds));
+            int breakpointsResId = a.getResourceId(R.styleable.CassowaryLayout_breakpoints, 0);
+            if (breakpointsResId != 0) {
+                breakpoints = Breakpoint.parseAll(getContext(), breakpointsResId);
+            }
+
+            log("readConstraintsFromXml asyncSetup " + asyncSetup + " flattenIntoParent " + flattenIntoParent);
+            String constraintsName = null;
+            if (!flattenIntoParent && constraintsResId != 0 && breakpoints == null) {
+                String name = getResources().getResourceEntryName(constraintsResId);
+                if (PrecomputedFrames.getInstance(getContext()).hasFrames(name)) {
+                    constraintsName = name;
+                }
+            }
+
+            CassowaryModel prewarmedModel = null;
+            if (!flattenIntoParent && constraintsResId != 0 && constraintsName == null) {
+                if (recycleModel) {
+                    prewarmedModel = ModelPool.getInstance().acquire(constraintsResId);
+                }
+                if (prewarmedModel == null) {
+                    prewarmedModel = PrewarmRegistry.getInstance().take(getContext(), constraintsResId);
+                }
+            }
 
-            log("readConstraintsFromXml asyncSetup " + asyncSetup );
-            if (asyncSetup) {
+            if (flattenIntoParent) {
+                // the constraints are added to the model of the parent when this layout is added to it
+                flattenedConstraints = constraints;
+            } else if (constraintsName != null) {
+                // set up only when a measure pass finds no frames precomputed for its size
+                precomputedConstraintsName = constraintsName;
+                deferredConstraints = constraints;
+            } else if (prewarmedModel != null) {
+                log("readConstraintsFromXml adopting set up model");
+                cassowaryModel = prewarmedModel;
+                state = State.PARSING_COMPLETE;
+            } else if (asyncSetup) {
                 setupSolverAsync(constraints);
+            } else if (constraintsResId != 0) {
+                // layouts inflated from the same resource share the compiled constraints
+                cassowaryModel = ModelBlueprint.forResource(getContext(), constraintsResId).newInstance();
+                state = State.PARSING_COMPLETE;
             } else {
-                cassowaryModel.addConstraints(constraints);
+                ensureModel().addConstraints(constraints);
                 state = State.PARSING_COMPLETE;
             }
 
@@ -601,9 +1908,153 @@ public class CassowaryLayout extends ViewGroup  {
 
     }
 
-    public Node getNodeById(int id) {
-        Node node = cassowaryModel.getNodeByName(viewIdResolver.getViewNameById(id));
-        return node;
+    public ChildNode getNodeById(int id) {
+        return getNodeByName(viewIdResolver.getViewNameById(id));
+    }
+
+    /**
+     * @return the named node of this layout, "container" refers to the container node
+     */
+    Node resolveNode(String nodeName) {
+        return "container".equals(nodeName) ? getContainerNode() : getNodeByName(nodeName);
+    }
+
+    /**
+     * @return true if setup is complete, no setup task is replacing the constraints and the model is not shared with
+     * a parent layout
+     */
+    boolean ownsSetUpModel() {
+        return state == State.PARSING_COMPLETE && setupTask == null && !isFlattened();
+    }
+
+    boolean isSolvingInBackground() {
+        return backgroundSolver != null;
+    }
+
+    private ChildNode getNodeByName(String name) {
+        if (backgroundSolver != null) {
+            throw new IllegalStateException("the model is owned by the background solver, suggest values through it");
+        }
+        startDeferredSetup();
+        ensureModel();
+        if (isFlattened()) {
+            return cassowaryModel.getNodeByName(nodeNamespace, name);
+        }
+        return cassowaryModel.getNodeByName(name);
+    }
+
+    private Node getContainerNode() {
+        if (isFlattened()) {
+            return cassowaryModel.getNestedContainerNode(nodeNamespace);
+        }
+        return ensureModel().getContainerNode();
+    }
+
+    private boolean isFlattened() {
+        return nodeNamespace != null;
+    }
+
+    private boolean isFlattenedChild(View child) {
+        return child instanceof CassowaryLayout && ((CassowaryLayout) child).isFlattened();
+    }
+
+    private void addNestedLayout(CassowaryLayout nestedLayout) {
+        if (backgroundSolver != null) {
+            throw new IllegalStateException("layouts can not be flattened into a layout while it is solving in the background");
+        }
+        if (state == State.PARSING_COMPLETE) {
+            addNestedLayoutToModel(nestedLayout);
+        } else {
+            if (pendingNestedLayouts == null) {
+                pendingNestedLayouts = new ArrayList<CassowaryLayout>();
+            }
+            pendingNestedLayouts.add(nestedLayout);
+        }
+    }
+
+    private void addPendingNestedLayouts() {
+        if (pendingNestedLayouts != null) {
+            for (CassowaryLayout nestedLayout : pendingNestedLayouts) {
+                addNestedLayoutToModel(nestedLayout);
+            }
+            pendingNestedLayouts.clear();
+        }
+    }
+
+    private void addNestedLayoutToModel(CassowaryLayout nestedLayout) {
+        if (nestedLayout.flattenedConstraints == null) {
+            throw new RuntimeException("missing cassowary:constraints for flattened layout");
+        }
+        String namespace = isFlattened() ?
+                nodeNamespace + CassowaryModel.NAMESPACE_SEPARATOR + viewIdResolver.getViewNameById(nestedLayout.getId()) :
+                viewIdResolver.getViewNameById(nestedLayout.getId());
+
+        log("addNestedLayoutToModel " + namespace);
+        ViewGroup.LayoutParams layoutParams = nestedLayout.getLayoutParams();
+        cassowaryModel.addNestedConstraints(namespace, nestedLayout.flattenedConstraints,
+                nestedLayout.getPaddingLeft() + nestedLayout.getPaddingRight(),
+                nestedLayout.getPaddingTop() + nestedLayout.getPaddingBottom(),
+                layoutParams == null || layoutParams.width == LayoutParams.WRAP_CONTENT,
+                layoutParams == null || layoutParams.height == LayoutParams.WRAP_CONTENT);
+        nestedLayout.attachToParentModel(cassowaryModel, namespace);
+        layoutAllChildren = true;
+        requestLayout();
+    }
+
+    private void removeNestedLayoutFromModel(CassowaryLayout nestedLayout) {
+        log("removeNestedLayoutFromModel " + nestedLayout.nodeNamespace);
+        cassowaryModel.removeNestedConstraints(nestedLayout.nodeNamespace);
+        nestedLayout.detachFromParentModel();
+        layoutAllChildren = true;
+    }
+
+    private void attachToParentModel(CassowaryModel parentModel, String namespace) {
+        cassowaryModel = parentModel;
+        nodeNamespace = namespace;
+        state = State.PARSING_COMPLETE;
+        // layouts flattened into the model of this layout while it was detached move along with it
+        addFlattenedChildrenToModel();
+        // layouts flattened into this one were waiting for this layout to be set up
+        addPendingNestedLayouts();
+        callbackAfterSetup();
+    }
+
+    // a layout removed from the layout it was flattened into sets up a model of its own
+    private void detachFromParentModel() {
+        nodeNamespace = null;
+        cassowaryModel = new CassowaryModel(getContext().getApplicationContext());
+        cassowaryModel.addConstraints(flattenedConstraints);
+        state = State.PARSING_COMPLETE;
+        addFlattenedChildrenToModel();
+        layoutAllChildren = true;
+        requestLayout();
+    }
+
+    private void addFlattenedChildrenToModel() {
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            if (isFlattenedChild(child)) {
+                addNestedLayoutToModel((CassowaryLayout) child);
+            }
+        }
+    }
+
+    // solving is left to the layout owning the shared model, which measures this layout in its measure rounds
+    private void flattenedMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        measureChildrenUsingNodes(widthMeasureSpec, heightMeasureSpec);
+        // a wrapped nested container is sized by its content in the next solve, see addNestedConstraints
+        updateContainerIntrinsicSize();
+
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = MeasureSpec.getSize(heightMeasureSpec);
+        FrameSnapshot snapshot = cassowaryModel.getSnapshot();
+        if (MeasureSpec.getMode(widthMeasureSpec) != MeasureSpec.EXACTLY) {
+            width = (int) getSolvedContentWidth(snapshot) + getPaddingLeft() + getPaddingRight();
+        }
+        if (MeasureSpec.getMode(heightMeasureSpec) != MeasureSpec.EXACTLY) {
+            height = (int) getSolvedContentHeight(snapshot) + getPaddingTop() + getPaddingBottom();
+        }
+        setMeasuredDimension(width, height);
     }
 
     private void log(String message) {
@@ -626,5 +2077,116 @@ public class CassowaryLayout extends ViewGroup  {
     public void setAspectRatioFixed(boolean aspectRatioFixed) {
         this.aspectRatioFixed = aspectRatioFixed;
     }
+
+    public int getMaxMeasureRounds() {
+        return maxMeasureRounds;
+    }
+
+    /**
+     * Sets the maximum number of times children with an intrinsic height are measured at their solved width
+     * during one measure pass. Must be at least 1.
+     */
+    public void setMaxMeasureRounds(int maxMeasureRounds) {
+        if (maxMeasureRounds < 1) {
+            throw new IllegalArgumentException("maxMeasureRounds must be at least 1");
+        }
+        this.maxMeasureRounds = maxMeasureRounds;
+    }
+
+    /**
+     * @return the number of measure rounds used by the last measure pass
+     */
+    public int getMeasureRounds() {
+        return measureRounds;
+    }
+
+    /**
+     * @return the number of intrinsic heights found in the height for width cache during the last measure pass
+     */
+    public int getIntrinsicCacheHits() {
+        return intrinsicCacheHits;
+    }
+
+    /**
+     * @return the number of children measured for an intrinsic height during the last measure pass
+     */
+    public int getIntrinsicCacheMisses() {
+        return intrinsicCacheMisses;
+    }
+
+    public int getFirstFramePolicy() {
+        return firstFramePolicy;
+    }
+
+    /**
+     * Sets how a layout measured while its async setup is in progress gets its first frame. With
+     * FIRST_FRAME_POLICY_BLOCK the measure pass waits up to the first frame timeout for setup to complete, with
+     * FIRST_FRAME_POLICY_CACHED_MEASUREMENT it uses the frames of an earlier layout with the same constraints and
+     * measure specs. By default it is sized from the aspect ratio and laid out when setup completes.
+     */
+    public void setFirstFramePolicy(int firstFramePolicy) {
+        this.firstFramePolicy = firstFramePolicy;
+        if (firstFramePolicy == FIRST_FRAME_POLICY_CACHED_MEASUREMENT && constraintsKey == null && setupConstraints != null) {
+            constraintsKey = SolvedLayoutCache.hashConstraints(setupConstraints);
+        }
+    }
+
+    public int getFirstFrameTimeout() {
+        return firstFrameTimeout;
+    }
+
+    /**
+     * @param firstFrameTimeout the longest time in milliseconds to block the measure pass with FIRST_FRAME_POLICY_BLOCK
+     */
+    public void setFirstFrameTimeout(int firstFrameTimeout) {
+        this.firstFrameTimeout = firstFrameTimeout;
+    }
+
+    /**
+     * @return the time in milliseconds from creation to the first frame that matched the solved constraints, or -1
+     * if there has been none yet
+     */
+    public long getTimeToFirstCorrectFrame() {
+        return timeToFirstCorrectFrame;
+    }
+
+    public boolean isRecycleModel() {
+        return recycleModel;
+    }
+
+    /**
+     * When enabled, a layout whose constraints were read from a resource releases its model to the ModelPool when
+     * detached and adopts a pooled model when inflated or attached again. Models are reset to their constraints, so
+     * this should only be enabled for layouts that do not add constraints to their model programmatically.
+     */
+    public void setRecycleModel(boolean recycleModel) {
+        this.recycleModel = recycleModel;
+    }
+
+    public boolean isFlattenIntoParent() {
+        return flattenIntoParent;
+    }
+
+    /**
+     * When set, the constraints of this layout are added to the model of the parent CassowaryLayout when this layout
+     * is added to it, and both are solved in one model. Node names are prefixed with the name of this layout and
+     * container refers to the content area of this layout. Must be set before this layout is added to its parent.
+     */
+    public void setFlattenIntoParent(boolean flattenIntoParent, CharSequence[] constraints) {
+        this.flattenIntoParent = flattenIntoParent;
+        this.flattenedConstraints = constraints;
+    }
+
+    public boolean isLayoutBoundary() {
+        return layoutBoundary;
+    }
+
+    /**
+     * When set, layout requests from children that cannot change the measured size of this layout are handled by
+     * measuring and laying out this layout only, instead of propagating the request up the view hierarchy.
+     */
+    public void setLayoutBoundary(boolean layoutBoundary) {
+        this.layoutBoundary = layoutBoundary;
+    }
 }
 
@@ -2,20 +2,39 @@ package no.agens.cassowarylayout;
 
 import android.content.Context;
 import android.util.Log;
+import android.view.View.MeasureSpec;
 
 import org.pybee.cassowary.Constraint;
 import org.pybee.cassowary.ConstraintNotFound;
 import org.pybee.cassowary.Expression;
 import org.pybee.cassowary.SimplexSolver;
+import org.pybee.cassowary.Strength;
 import org.pybee.cassowary.Variable;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import no.agens.cassowarylayout.util.DimensionParser;
 import no.agens.cassowarylayout.util.TimerUtil;
 
 /**
  * Created by alex on 01/11/14.
+ *
+ * Threading: a model is mutated by one owner thread at a time. The background setup task owns it until setup is
+ * complete and hands it to the main thread by posting the completion callback. While a BackgroundSolver runs, its
+ * thread owns the model, and the layout measures and lays out from snapshots and posts its changes to that thread.
+ * Every solve publishes an immutable FrameSnapshot, which is the only part of the model other threads may read.
  */
 public class CassowaryModel {
 
@@ -28,41 +47,98 @@ public class CassowaryModel {
         setupCassowary();
     }
 
+    /**
+     * Creates an instance of a blueprint, which reports the base snapshot of the blueprint until it is used
+     */
+    CassowaryModel(Context context, ModelBlueprint blueprint) {
+        // the solver is created along with the constraints of the blueprint, see ensureConstraints
+        this.context = context;
+        pendingBlueprint = blueprint;
+        FrameSnapshot baseSnapshot = blueprint.getBaseSnapshot();
+        slots = baseSnapshot.getSlots();
+        solveCount = baseSnapshot.getVersion();
+        snapshot.set(baseSnapshot);
+    }
+
     private HashMap<String, ChildNode> nodes = new HashMap<String, ChildNode>();
 
-    private SimplexSolver solver = new SimplexSolver();
+    private ArrayList<ChildNode> nodesBySlot = new ArrayList<ChildNode>();
 
-    private ContainerNode containerNode = new ContainerNode(solver);
+    private HashSet<Node> changedNodes = new HashSet<Node>();
 
-    //changed this resolver to public, so later other components can create constraints with this same resolver - Yong
-    public ConstraintParser.CassowaryVariableResolver cassowaryVariableResolver = new ConstraintParser.CassowaryVariableResolver() {
-        @Override
-        public Variable resolveVariable(String variableName) {
-            return CassowaryModel.this.resolveVariable(variableName);
-        }
+    private final AtomicReference<FrameSnapshot> snapshot = new AtomicReference<FrameSnapshot>();
+    private FrameSnapshot.Slots slots;
+    private long solveCount;
 
-        @Override
-        public Expression resolveConstant(String constantName) {
+    private SimplexSolver solver;
 
-            Expression expression = null;
-            Double value;
+    private ContainerNode containerNode;
 
-            try {
-                value = Double.parseDouble(constantName);
-            } catch (NumberFormatException e) {
-                value = DimensionParser.getDimension(constantName, getContext());
+    /**
+     * Separates the namespace of a nested layout from the names of its nodes, see addNestedConstraints
+     */
+    public static final String NAMESPACE_SEPARATOR = ":";
+
+    private HashMap<String, ContainerNode> nestedContainerNodes = new HashMap<String, ContainerNode>();
+    // the constraints added by addNestedConstraints by namespace, see removeNestedConstraints
+    private HashMap<String, ArrayList<Constraint>> nestedConstraints = new HashMap<String, ArrayList<Constraint>>();
+
+    // the constraints added by addConstraints, keyed by canonical form, see replaceConstraints
+    private LinkedHashMap<String, TrackedConstraint> addedConstraints = new LinkedHashMap<String, TrackedConstraint>();
+    // set when constraints are added that can not be rebuilt from addedConstraints, see isRebuildable
+    private boolean hasUntrackedConstraints;
+    // the nodes whose views have been removed, see retractNode
+    private HashSet<String> retractedNodes = new HashSet<String>();
+    // the nodes whose views are GONE, see setNodeGone
+    private HashSet<String> goneNodes = new HashSet<String>();
+
+    // constraints added on top of the base constraints in each named state, see defineState
+    private HashMap<String, List<CompiledConstraint>> stateOverlays = new HashMap<String, List<CompiledConstraint>>();
+    private String state;
+    // the constraints of the overlay of the current state that are in the solver, keyed by canonical form
+    private HashMap<String, Constraint> overlayConstraints = new HashMap<String, Constraint>();
+    private int lastStateSwitchOperations;
+    private volatile int constraintGeneration;
 
+    // the blueprint whose constraints are added to the solver when the model is first used
+    private ModelBlueprint pendingBlueprint;
+
+    //changed this resolver to public, so later other components can create constraints with this same resolver - Yong
+    public ConstraintParser.CassowaryVariableResolver cassowaryVariableResolver = createVariableResolver(null);
+
+    private ConstraintParser.CassowaryVariableResolver createVariableResolver(final String namespace) {
+        return new ConstraintParser.CassowaryVariableResolver() {
+            @Override
+            public Variable resolveVariable(String variableName) {
+                return CassowaryModel.this.resolveVariable(variableName, namespace);
             }
 
-            if (value != null) {
-                expression = new Expression(value);
+            @Override
+            public Expression resolveConstant(String constantName) {
+                return CassowaryModel.this.resolveConstant(constantName);
             }
-            return expression;
+        };
+    }
+
+    private Expression resolveConstant(String constantName) {
+
+        Expression expression = null;
+        Double value;
+
+        try {
+            value = Double.parseDouble(constantName);
+        } catch (NumberFormatException e) {
+            value = DimensionParser.getDimension(constantName, getContext());
+
         }
-    };
 
+        if (value != null) {
+            expression = new Expression(value);
+        }
+        return expression;
+    }
 
-    private Variable resolveVariable(String variableName) {
+    private Variable resolveVariable(String variableName, String namespace) {
         Variable variable = null;
 
         String[] stringArray = variableName.split("\\.");
@@ -73,9 +149,10 @@ public class CassowaryModel {
 
             if (nodeName != null) {
                 if ("container".equals(nodeName) || "parent".equals(nodeName)) {
-                    variable = containerNode.getVariable(propertyName);
+                    Node container = namespace == null ? getContainerNode() : getNestedContainerNode(namespace);
+                    variable = container.getVariable(propertyName);
                 } else {
-                    Node node = getNodeByName(nodeName);
+                    Node node = namespace == null ? getNodeByName(nodeName) : getNodeByName(namespace, nodeName);
                     if (node != null) {
                         variable = node.getVariable(propertyName);
                     }
@@ -91,46 +168,202 @@ public class CassowaryModel {
     }
 
     public ChildNode getNodeByName(String name) {
+        ensureConstraints();
         ChildNode node = nodes.get(name);
         if (node == null) {
             node = new ChildNode(solver);
+            node.setSlot(nodesBySlot.size());
             nodes.put(name, node);
+            nodesBySlot.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node named name in the constraints of the nested layout identified by namespace
+     */
+    public ChildNode getNodeByName(String namespace, String name) {
+        return getNodeByName(namespace + NAMESPACE_SEPARATOR + name);
+    }
+
+    /**
+     * Returns the node that the constraints of the nested layout identified by namespace refer to as container
+     */
+    public Node getNestedContainerNode(String namespace) {
+        ensureConstraints();
+        ContainerNode node = nestedContainerNodes.get(namespace);
+        if (node == null) {
+            node = new ContainerNode(solver);
+            nestedContainerNodes.put(namespace, node);
         }
         return node;
     }
 
+    /**
+     * Adds the constraints of a nested layout to this model, so that the nested layout and its parent are solved
+     * together. Node names in the constraints are prefixed with the namespace, which must be the name of the node
+     * representing the nested layout in this model. The nested container is the content area of that node. In a
+     * wrapped dimension the nested container takes the size of its content, see Node.setIntrinsicWidth, unless
+     * stronger constraints size it.
+     */
+    public void addNestedConstraints(String namespace, CharSequence[] constraints, int horizontalPadding, int verticalPadding,
+                                     boolean wrapWidth, boolean wrapHeight) {
+        long timeBefore = System.nanoTime();
+        if (nestedConstraints.containsKey(namespace)) {
+            removeNestedConstraints(namespace);
+        }
+        ArrayList<Constraint> added = new ArrayList<Constraint>();
+        nestedConstraints.put(namespace, added);
+
+        Node layoutNode = getNodeByName(namespace);
+        Node nestedContainerNode = getNestedContainerNode(namespace);
+        try {
+            addNestedConstraint(added, new Constraint(nestedContainerNode.getWidth(), Constraint.Operator.EQ, new Expression(horizontalPadding).subtractFrom(new Expression(layoutNode.getWidth())), Strength.REQUIRED));
+            addNestedConstraint(added, new Constraint(nestedContainerNode.getHeight(), Constraint.Operator.EQ, new Expression(verticalPadding).subtractFrom(new Expression(layoutNode.getHeight())), Strength.REQUIRED));
+            if (wrapWidth) {
+                addNestedConstraint(added, new Constraint(nestedContainerNode.getWidth(), Constraint.Operator.EQ, new Expression(nestedContainerNode.getIntrinsicWidth()), Strength.MEDIUM));
+            }
+            if (wrapHeight) {
+                addNestedConstraint(added, new Constraint(nestedContainerNode.getHeight(), Constraint.Operator.EQ, new Expression(nestedContainerNode.getIntrinsicHeight()), Strength.MEDIUM));
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "could not link nested container " + namespace, e);
+        }
+
+        ConstraintParser.CassowaryVariableResolver nestedResolver = createVariableResolver(namespace);
+        ArrayList<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>();
+        for (CharSequence constraint : constraints) {
+            try {
+                compiledConstraints.clear();
+                ConstraintParser.compileConstraints(constraint.toString(), nestedResolver, compiledConstraints);
+                for (CompiledConstraint compiled : compiledConstraints) {
+                    addNestedConstraint(added, ConstraintParser.parseConstraint(compiled, nestedResolver));
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "could not add nested constraint " + namespace + " " + constraint.toString(), e);
+            }
+        }
+        Log.d(LOG_TAG, "addNestedConstraints " + namespace + " took " + TimerUtil.since(timeBefore));
+    }
+
+    private void addNestedConstraint(List<Constraint> added, Constraint constraint) {
+        addToSolver(constraint);
+        added.add(constraint);
+    }
+
+    /**
+     * Removes the constraints added by addNestedConstraints for the namespace, and for the namespaces nested in it,
+     * along with their nodes, e.g. when the nested layout has been removed from its parent. The node representing
+     * the nested layout is left to the constraints of the parent. The remaining nodes get new slots.
+     */
+    public void removeNestedConstraints(String namespace) {
+        long timeBefore = System.nanoTime();
+        ensureConstraints();
+        String prefix = namespace + NAMESPACE_SEPARATOR;
+
+        int removedConstraints = 0;
+        Iterator<Map.Entry<String, ArrayList<Constraint>>> constraintIterator = nestedConstraints.entrySet().iterator();
+        while (constraintIterator.hasNext()) {
+            Map.Entry<String, ArrayList<Constraint>> entry = constraintIterator.next();
+            if (entry.getKey().equals(namespace) || entry.getKey().startsWith(prefix)) {
+                for (Constraint constraint : entry.getValue()) {
+                    removeConstraint(constraint);
+                    removedConstraints++;
+                }
+                constraintIterator.remove();
+            }
+        }
+        Iterator<Map.Entry<String, ContainerNode>> containerIterator = nestedContainerNodes.entrySet().iterator();
+        while (containerIterator.hasNext()) {
+            Map.Entry<String, ContainerNode> entry = containerIterator.next();
+            if (entry.getKey().equals(namespace) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().removeFromSolver();
+                containerIterator.remove();
+            }
+        }
+        int removedNodes = 0;
+        Iterator<Map.Entry<String, ChildNode>> nodeIterator = nodes.entrySet().iterator();
+        while (nodeIterator.hasNext()) {
+            Map.Entry<String, ChildNode> entry = nodeIterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                removeNode(entry.getValue());
+                nodeIterator.remove();
+                removedNodes++;
+            }
+        }
+        if (removedNodes > 0) {
+            assignSlots();
+        }
+        Log.d(LOG_TAG, "removeNestedConstraints " + namespace + " removed " + removedConstraints + " constraints and " +
+                removedNodes + " nodes took " + TimerUtil.since(timeBefore));
+    }
+
     private Context getContext() {
         return context;
     }
 
     private void setupCassowary() {
         Log.d(LOG_TAG, "setupCassowary");
+        solver = new SimplexSolver();
         solver.setAutosolve(false);
+        containerNode = new ContainerNode(solver);
     }
 
     public void addConstraint(Constraint constraint) {
-        solver.addConstraint(constraint);
+        ensureConstraints();
+        addToSolver(constraint);
+        hasUntrackedConstraints = true;
     }
 
+    /**
+     * Adds a single constraint one at a time, see isRebuildable. Templates and fallbacks declared with @ifGone are
+     * only supported by addConstraints, which keeps track of the constraints they compile to.
+     */
     public Constraint addConstraint(String constraintString) {
         Log.d(LOG_TAG, "adding constraint " + constraintString);
-        Constraint constraint = ConstraintParser.parseConstraint(constraintString, cassowaryVariableResolver);
+        ArrayList<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>(1);
+        ConstraintParser.compileConstraints(constraintString, cassowaryVariableResolver, compiledConstraints);
+        if (compiledConstraints.size() != 1 || compiledConstraints.get(0).getIfGone() != null) {
+            throw new IllegalArgumentException("use addConstraints for templates and @ifGone: " + constraintString);
+        }
+        Constraint constraint = ConstraintParser.parseConstraint(compiledConstraints.get(0), cassowaryVariableResolver);
         addConstraint(constraint);
         return constraint;
     }
 
     public void removeConstraint(Constraint constraint) {
+        ensureConstraints();
         try {
             solver.removeConstraint(constraint);
+            constraintGeneration++;
         } catch (ConstraintNotFound constraintNotFound) {
             constraintNotFound.printStackTrace();
         }
     }
 
+    private void addToSolver(Constraint constraint) {
+        solver.addConstraint(constraint);
+        constraintGeneration++;
+    }
+
+    /**
+     * @return a number that changes whenever a constraint is added to or removed from the solver, e.g. by a state
+     * switch or replaceConstraints, but not when values are set on nodes. Solutions cached for one generation do not
+     * apply to another.
+     */
+    public int getConstraintGeneration() {
+        return constraintGeneration;
+    }
+
     public void addConstraints(CharSequence[] constraints) {
+        ArrayList<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>();
         for (CharSequence constraint : constraints) {
             try {
-                addConstraint(constraint.toString());
+                compiledConstraints.clear();
+                ConstraintParser.compileConstraints(constraint.toString(), cassowaryVariableResolver, compiledConstraints);
+                for (CompiledConstraint compiled : compiledConstraints) {
+                    addCompiledConstraint(compiled);
+                }
             } catch (RuntimeException e) {
                 Log.e(LOG_TAG, "could not add constraint " + constraint.toString(), e);
             }
@@ -138,20 +371,754 @@ public class CassowaryModel {
         }
     }
 
+    /**
+     * Replaces the constraints added by addConstraints with new ones, e.g. a slightly modified array from a server.
+     * Constraints are compared by their canonical form: the ones that are missing are removed from the solver, the
+     * new ones are added and the unchanged ones are kept along with the state of the solver.
+     */
+    public void replaceConstraints(CharSequence[] constraints) {
+        long timeBefore = System.nanoTime();
+        ensureConstraints();
+        LinkedHashMap<String, CompiledConstraint> target = new LinkedHashMap<String, CompiledConstraint>();
+        ArrayList<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>();
+        for (CharSequence constraint : constraints) {
+            try {
+                compiledConstraints.clear();
+                ConstraintParser.compileConstraints(constraint.toString(), cassowaryVariableResolver, compiledConstraints);
+                for (CompiledConstraint compiled : compiledConstraints) {
+                    target.put(getUnusedKey(target, compiled.getCanonicalForm()), compiled);
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "could not parse constraint " + constraint.toString(), e);
+            }
+        }
+
+        int removed = 0;
+        Iterator<Map.Entry<String, TrackedConstraint>> iterator = addedConstraints.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, TrackedConstraint> entry = iterator.next();
+            if (!target.containsKey(entry.getKey())) {
+                if (entry.getValue().constraint != null) {
+                    removeConstraint(entry.getValue().constraint);
+                }
+                iterator.remove();
+                removed++;
+            }
+        }
+        int added = 0;
+        for (Map.Entry<String, CompiledConstraint> entry : target.entrySet()) {
+            if (!addedConstraints.containsKey(entry.getKey())) {
+                try {
+                    addCompiledConstraint(entry.getKey(), entry.getValue());
+                    added++;
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "could not add constraint " + entry.getValue(), e);
+                }
+            }
+        }
+        Log.d(LOG_TAG, "replaceConstraints removed " + removed + " added " + added + " kept " + (target.size() - added) +
+                " took " + TimerUtil.since(timeBefore));
+    }
+
+    private void addCompiledConstraint(CompiledConstraint compiled) {
+        addCompiledConstraint(getUnusedKey(addedConstraints, compiled.getCanonicalForm()), compiled);
+    }
+
+    private void addCompiledConstraint(String key, CompiledConstraint compiled) {
+        TrackedConstraint tracked = new TrackedConstraint(compiled);
+        if (isApplicable(compiled)) {
+            ensureConstraints();
+            tracked.constraint = ConstraintParser.parseConstraint(compiled, cassowaryVariableResolver);
+            addToSolver(tracked.constraint);
+        }
+        addedConstraints.put(key, tracked);
+    }
+
+    /**
+     * Removes the constraints added by addConstraints that refer to the node from the solver, e.g. when its view has
+     * been removed from the layout, until the node is reinstated. The values set on the node are cleared.
+     */
+    public void retractNode(String name) {
+        long timeBefore = System.nanoTime();
+        ensureConstraints();
+        if (!nodes.containsKey(name) || !retractedNodes.add(name)) {
+            return;
+        }
+        int changed = updateConstraintsOf(name);
+        nodes.get(name).clearValues();
+        Log.d(LOG_TAG, "retractNode " + name + " changed " + changed + " constraints took " + TimerUtil.since(timeBefore));
+    }
+
+    /**
+     * Adds the constraints retracted with retractNode back to the solver, except those that refer to other nodes
+     * that are still retracted or gone
+     */
+    public void reinstateNode(String name) {
+        if (!retractedNodes.remove(name)) {
+            return;
+        }
+        long timeBefore = System.nanoTime();
+        int changed = updateConstraintsOf(name);
+        Log.d(LOG_TAG, "reinstateNode " + name + " changed " + changed + " constraints took " + TimerUtil.since(timeBefore));
+    }
+
+    /**
+     * Removes the constraints added by addConstraints that refer to a node while its view is GONE, and adds the
+     * fallback constraints declared with @ifGone for it in their place, or the other way around when it is no longer
+     * gone. Only the constraints of the node are touched, so visibility can be toggled often.
+     */
+    public void setNodeGone(String name, boolean gone) {
+        ensureConstraints();
+        if (gone ? !goneNodes.add(name) : !goneNodes.remove(name)) {
+            return;
+        }
+        long timeBefore = System.nanoTime();
+        int changed = updateConstraintsOf(name);
+        Log.d(LOG_TAG, "setNodeGone " + name + " " + gone + " changed " + changed + " constraints took " + TimerUtil.since(timeBefore));
+    }
+
+    public boolean hasGoneNodes() {
+        return !goneNodes.isEmpty();
+    }
+
+    public boolean isNodeGone(String name) {
+        return goneNodes.contains(name);
+    }
+
+    /**
+     * Adds or removes the tracked constraints and the constraints of the current state that refer to the node, or are
+     * a fallback for it, so that exactly the applicable ones are in the solver
+     * @return the number of constraints added or removed
+     */
+    private int updateConstraintsOf(String name) {
+        int changed = 0;
+        for (TrackedConstraint tracked : addedConstraints.values()) {
+            CompiledConstraint compiled = tracked.compiled;
+            if (!name.equals(compiled.ifGone) && !compiled.getNodeNames().contains(name)) {
+                continue;
+            }
+            boolean applicable = isApplicable(compiled);
+            if (!applicable && tracked.constraint != null) {
+                removeConstraint(tracked.constraint);
+                tracked.constraint = null;
+                changed++;
+            } else if (applicable && tracked.constraint == null) {
+                try {
+                    // parsed again, the node may have been collected since the constraint was removed
+                    tracked.constraint = ConstraintParser.parseConstraint(compiled, cassowaryVariableResolver);
+                    addToSolver(tracked.constraint);
+                    changed++;
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "could not add constraint " + compiled, e);
+                }
+            }
+        }
+        if (state != null) {
+            for (CompiledConstraint compiled : stateOverlays.get(state)) {
+                if (!name.equals(compiled.ifGone) && !compiled.getNodeNames().contains(name)) {
+                    continue;
+                }
+                String key = compiled.getCanonicalForm();
+                Constraint constraint = overlayConstraints.get(key);
+                boolean applicable = isApplicable(compiled);
+                if (!applicable && constraint != null) {
+                    removeConstraint(constraint);
+                    overlayConstraints.remove(key);
+                    changed++;
+                } else if (applicable && constraint == null) {
+                    try {
+                        constraint = ConstraintParser.parseConstraint(compiled, cassowaryVariableResolver);
+                        addToSolver(constraint);
+                        overlayConstraints.put(key, constraint);
+                        changed++;
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "could not add constraint " + compiled, e);
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the constraint refers to no retracted or gone node, and the node it is a fallback for, if any,
+     * is retracted or gone
+     */
+    private boolean isApplicable(CompiledConstraint compiled) {
+        if (compiled.ifGone != null && !isInactive(compiled.ifGone)) {
+            return false;
+        }
+        if (retractedNodes.isEmpty() && goneNodes.isEmpty()) {
+            return true;
+        }
+        for (String name : compiled.getNodeNames()) {
+            if (isInactive(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInactive(String name) {
+        return retractedNodes.contains(name) || goneNodes.contains(name);
+    }
+
+    /**
+     * Removes the retracted nodes that no constraint in the solver refers to any more, along with their variables and
+     * implicit constraints. The remaining nodes get new slots. A node that is referred to again is created anew.
+     * Nothing is removed from a model with constraints added one at a time, since the nodes they refer to are not
+     * known.
+     * @return the number of nodes removed
+     */
+    public int collectGarbage() {
+        if (retractedNodes.isEmpty()) {
+            return 0;
+        }
+        if (hasUntrackedConstraints) {
+            Log.d(LOG_TAG, "collectGarbage skipped, constraints added one at a time may refer to retracted nodes");
+            return 0;
+        }
+        long timeBefore = System.nanoTime();
+        HashSet<String> referenced = new HashSet<String>();
+        for (TrackedConstraint tracked : addedConstraints.values()) {
+            if (tracked.constraint != null) {
+                referenced.addAll(tracked.compiled.getNodeNames());
+            }
+        }
+        if (state != null) {
+            for (CompiledConstraint constraint : stateOverlays.get(state)) {
+                if (overlayConstraints.containsKey(constraint.getCanonicalForm())) {
+                    referenced.addAll(constraint.getNodeNames());
+                }
+            }
+        }
+
+        int collected = 0;
+        for (String name : retractedNodes) {
+            ChildNode node = nodes.get(name);
+            if (node != null && !referenced.contains(name)) {
+                removeNode(node);
+                nodes.remove(name);
+                collected++;
+            }
+        }
+        if (collected > 0) {
+            assignSlots();
+        }
+        Log.d(LOG_TAG, "collectGarbage removed " + collected + " nodes, " + nodes.size() + " left, took " + TimerUtil.since(timeBefore));
+        return collected;
+    }
+
+    /**
+     * Removes the node from the solver and from the slots, leaving it to the caller to remove it from nodes
+     */
+    private void removeNode(ChildNode node) {
+        node.removeFromSolver();
+        nodesBySlot.remove(node);
+        changedNodes.remove(node);
+        node.setSlot(-1);
+    }
+
+    private void assignSlots() {
+        for (int slot = 0; slot < nodesBySlot.size(); slot++) {
+            nodesBySlot.get(slot).setSlot(slot);
+        }
+        slots = null;
+    }
+
+    /**
+     * A constraint added by addConstraints, null while it is not applicable, see isApplicable
+     */
+    private static class TrackedConstraint {
+        final CompiledConstraint compiled;
+        Constraint constraint;
+
+        TrackedConstraint(CompiledConstraint compiled) {
+            this.compiled = compiled;
+        }
+    }
+
+    /**
+     * @return the canonical form, suffixed with a count if the map has a constraint with the same form already
+     */
+    private static String getUnusedKey(Map<String, ?> constraints, String canonicalForm) {
+        String key = canonicalForm;
+        for (int count = 2; constraints.containsKey(key); count++) {
+            key = canonicalForm + "#" + count;
+        }
+        return key;
+    }
+
     public void addConstraints(int id) {
         String[] constraints = context.getResources().getStringArray(id);
         addConstraints(constraints);
     }
 
+    public void addConstraints(List<CompiledConstraint> constraints) {
+        for (CompiledConstraint constraint : constraints) {
+            try {
+                addCompiledConstraint(constraint);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "could not add constraint " + constraint, e);
+            }
+        }
+    }
+
+    /**
+     * Defines a named state by the constraints it adds to the base constraints of the model, e.g. the constraints of
+     * an expanded or collapsed card. The state is applied right away if it is the current state.
+     */
+    public void defineState(String name, CharSequence[] overlay) {
+        ArrayList<CompiledConstraint> constraints = new ArrayList<CompiledConstraint>(overlay.length);
+        for (CharSequence constraint : overlay) {
+            ConstraintParser.compileConstraints(constraint.toString(), cassowaryVariableResolver, constraints);
+        }
+        stateOverlays.put(name, constraints);
+        if (name.equals(state)) {
+            applyState(name);
+        }
+    }
+
+    /**
+     * Switches to a state defined with defineState, or to the base constraints only if name is null. Only the
+     * constraints that differ between the overlays of the two states are removed from and added to the solver, which
+     * keeps its solution as the starting point of the next solve.
+     */
+    public void setState(String name) {
+        if (name != null && !stateOverlays.containsKey(name)) {
+            throw new RuntimeException("unknown state " + name);
+        }
+        if (name == null ? state == null : name.equals(state)) {
+            return;
+        }
+        applyState(name);
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of constraints removed from and added to the solver by the last state switch
+     */
+    int getLastStateSwitchOperations() {
+        return lastStateSwitchOperations;
+    }
+
+    private void applyState(String name) {
+        long timeBefore = System.nanoTime();
+        ensureConstraints();
+        LinkedHashMap<String, CompiledConstraint> target = new LinkedHashMap<String, CompiledConstraint>();
+        if (name != null) {
+            for (CompiledConstraint constraint : stateOverlays.get(name)) {
+                target.put(constraint.getCanonicalForm(), constraint);
+            }
+        }
+
+        int operations = 0;
+        Iterator<Map.Entry<String, Constraint>> iterator = overlayConstraints.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Constraint> entry = iterator.next();
+            if (!target.containsKey(entry.getKey())) {
+                removeConstraint(entry.getValue());
+                iterator.remove();
+                operations++;
+            }
+        }
+        for (Map.Entry<String, CompiledConstraint> entry : target.entrySet()) {
+            // constraints referring to retracted or gone nodes are added when the nodes are back, see updateConstraintsOf
+            if (!overlayConstraints.containsKey(entry.getKey()) && isApplicable(entry.getValue())) {
+                try {
+                    Constraint constraint = ConstraintParser.parseConstraint(entry.getValue(), cassowaryVariableResolver);
+                    addToSolver(constraint);
+                    overlayConstraints.put(entry.getKey(), constraint);
+                    operations++;
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "could not add constraint " + entry.getValue(), e);
+                }
+            }
+        }
+        state = name;
+        lastStateSwitchOperations = operations;
+        Log.d(LOG_TAG, "switching to state " + name + " with " + operations + " solver operations took " + TimerUtil.since(timeBefore));
+    }
+
     public Node getContainerNode() {
+        ensureConstraints();
         return containerNode;
     }
 
+    /**
+     * @return true if this is an instance of a blueprint that has not been used yet, see ModelBlueprint
+     */
+    public boolean isPendingInstance() {
+        return pendingBlueprint != null;
+    }
+
+    private void ensureConstraints() {
+        if (pendingBlueprint != null) {
+            long timeBefore = System.nanoTime();
+            ModelBlueprint blueprint = pendingBlueprint;
+            pendingBlueprint = null;
+            setupCassowary();
+            addConstraints(blueprint.getConstraints());
+            // the nodes may have been created in another order than in the model the base snapshot was taken from
+            slots = null;
+            Log.d(LOG_TAG, "instantiating blueprint took " + TimerUtil.since(timeBefore));
+        }
+    }
+
+    /**
+     * Starts a transaction for changing variable values, which are set and solved once on commit.
+     */
+    public EditTransaction edit() {
+        return new EditTransaction(this);
+    }
+
+    /**
+     * Sets the values of a committed EditTransaction on the nodes, "container" refers to the container node. Must be
+     * called on the thread owning the model.
+     */
+    void applyEdits(Collection<EditTransaction.Edit> edits) {
+        for (EditTransaction.Edit edit : edits) {
+            Node node = "container".equals(edit.nodeName) ? getContainerNode() : getNodeByName(edit.nodeName);
+            node.setVariableToValue(edit.variableName, edit.value);
+        }
+    }
+
     public void solve() {
         long timeBeforeSolve = System.nanoTime();
+        ensureConstraints();
+
+        solver.solve();
+        publishSnapshot();
+
+        Log.d(LOG_TAG, "solve took " + TimerUtil.since(timeBeforeSolve) + " changed nodes " + changedNodes.size());
+    }
 
+    /**
+     * Starts editing variables of the nodes, e.g. on every frame of an animation. Values suggested for the variables
+     * with suggestValue are applied by resolve, which is cheaper than setting them on the nodes and solving, as no
+     * constraints are added or removed. The values set on the variables are removed until endEdit. Must be called
+     * on the thread owning the model.
+     * @param nodes the nodes of the variables, in the order of variableNames
+     */
+    Variable[] beginEdit(Node[] nodes, String[] variableNames) {
+        ensureConstraints();
+        Variable[] variables = new Variable[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            variables[i] = nodes[i].addEditVariable(variableNames[i]);
+        }
+        solver.beginEdit();
+        return variables;
+    }
+
+    void suggestValue(Variable variable, double value) {
+        solver.suggestValue(variable, value);
+    }
+
+    /**
+     * Solves the model for the values suggested since beginEdit and publishes a snapshot of the frames.
+     */
+    void resolve() {
+        long timeBeforeSolve = System.nanoTime();
+        solver.resolve();
+        publishSnapshot();
+        Log.d(LOG_TAG, "resolve took " + TimerUtil.since(timeBeforeSolve) + " changed nodes " + changedNodes.size());
+    }
+
+    /**
+     * Stops editing, setting the edited variables to values on their nodes so that they keep them.
+     */
+    void endEdit(Node[] nodes, String[] variableNames, double[] values) {
+        solver.endEdit();
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].setVariableToValue(variableNames[i], values[i]);
+        }
+        solve();
+    }
+
+    /**
+     * Measures the container without any views, e.g. to know the height of a list row before it is bound. The specs
+     * are for the content area of the container, i.e. without padding. Intrinsic sizes are supplied by the caller
+     * per node name, nodes without a supplied value keep their previous intrinsic size. The container wraps all
+     * nodes of the model, as a CassowaryLayout with no GONE children would.
+     */
+    public MeasureResult measure(int widthMeasureSpec, int heightMeasureSpec, Map<String, Integer> intrinsicWidths, Map<String, Integer> intrinsicHeights) {
+        long timeBefore = System.nanoTime();
+        ensureConstraints();
+
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+        setMeasureSpecOnContainer(containerNode, widthMode, MeasureSpec.getSize(widthMeasureSpec), heightMode, MeasureSpec.getSize(heightMeasureSpec));
+
+        if (intrinsicWidths != null) {
+            for (Map.Entry<String, Integer> entry : intrinsicWidths.entrySet()) {
+                getNodeByName(entry.getKey()).setIntrinsicWidth(entry.getValue());
+            }
+        }
+        if (intrinsicHeights != null) {
+            for (Map.Entry<String, Integer> entry : intrinsicHeights.entrySet()) {
+                getNodeByName(entry.getKey()).setIntrinsicHeight(entry.getValue());
+            }
+        }
         solver.solve();
 
-        Log.d(LOG_TAG, "solve took " + TimerUtil.since(timeBeforeSolve));
+        int containerIntrinsicHeight = 0;
+        int containerIntrinsicWidth = 0;
+        for (ChildNode node : nodesBySlot) {
+            containerIntrinsicHeight = Math.max((int) node.getVariableValue(Node.BOTTOM), containerIntrinsicHeight);
+            containerIntrinsicWidth = Math.max((int) node.getVariableValue(Node.RIGHT), containerIntrinsicWidth);
+        }
+        containerNode.setIntrinsicHeight(containerIntrinsicHeight);
+        containerNode.setIntrinsicWidth(containerIntrinsicWidth);
+        solve();
+
+        FrameSnapshot frames = getSnapshot();
+        int width = widthMode == MeasureSpec.EXACTLY ? MeasureSpec.getSize(widthMeasureSpec) : (int) frames.getContainerWidth();
+        int height = heightMode == MeasureSpec.EXACTLY ? MeasureSpec.getSize(heightMeasureSpec) : (int) frames.getContainerHeight();
+
+        Log.d(LOG_TAG, "measure took " + TimerUtil.since(timeBefore));
+        return new MeasureResult(width, height, frames);
+    }
+
+    /**
+     * Measures the constraints on the executor, on a model of their own, so that any number of measurements can run
+     * concurrently. See measure.
+     */
+    public static Future<MeasureResult> measureAsync(Executor executor, final Context context, final CharSequence[] constraints,
+                                                     final int widthMeasureSpec, final int heightMeasureSpec,
+                                                     final Map<String, Integer> intrinsicWidths, final Map<String, Integer> intrinsicHeights) {
+        FutureTask<MeasureResult> task = new FutureTask<MeasureResult>(new Callable<MeasureResult>() {
+            @Override
+            public MeasureResult call() throws Exception {
+                CassowaryModel model = new CassowaryModel(context);
+                model.addConstraints(constraints);
+                return model.measure(widthMeasureSpec, heightMeasureSpec, intrinsicWidths, intrinsicHeights);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    static void setMeasureSpecOnContainer(Node container, int widthMode, int width, int heightMode, int height) {
+        if (heightMode == MeasureSpec.AT_MOST) {
+            container.setVariableToAtMost(Node.HEIGHT, height);
+        } else if (heightMode == MeasureSpec.EXACTLY) {
+            container.setVariableToValue(Node.HEIGHT, height);
+        }
+
+        if (widthMode == MeasureSpec.AT_MOST) {
+            container.setVariableToAtMost(Node.WIDTH, width);
+        } else {
+            container.setVariableToValue(Node.WIDTH, width);
+        }
+    }
+
+    /**
+     * Removes the values set on nodes, such as intrinsic sizes, container sizes and suggested custom variables,
+     * leaving the constraints in place. The next solve reports every frame as changed.
+     */
+    public void resetValues() {
+        long timeBefore = System.nanoTime();
+        if (pendingBlueprint == null) {
+            containerNode.clearValues();
+            for (ContainerNode node : nestedContainerNodes.values()) {
+                node.clearValues();
+            }
+            for (ChildNode node : nodesBySlot) {
+                node.clearValues();
+            }
+        }
+        changedNodes.clear();
+        snapshot.set(null);
+        Log.d(LOG_TAG, "resetValues took " + TimerUtil.since(timeBefore));
+    }
+
+    /**
+     * @return true if the model can be rebuilt from getCompiledConstraints and getSuggestedValues, i.e. it has no
+     * states, nested layouts, retracted nodes or constraints added one at a time
+     */
+    public boolean isRebuildable() {
+        return !hasUntrackedConstraints && stateOverlays.isEmpty() && nestedContainerNodes.isEmpty() && retractedNodes.isEmpty();
+    }
+
+    /**
+     * @return the constraints added by addConstraints, in the order they were added
+     */
+    List<CompiledConstraint> getCompiledConstraints() {
+        if (pendingBlueprint != null) {
+            return pendingBlueprint.getConstraints();
+        }
+        ArrayList<CompiledConstraint> constraints = new ArrayList<CompiledConstraint>(addedConstraints.size());
+        for (TrackedConstraint tracked : addedConstraints.values()) {
+            constraints.add(tracked.compiled);
+        }
+        return constraints;
+    }
+
+    /**
+     * Estimates the memory retained by the model: its solver, nodes, variables and constraints, and its last
+     * snapshot. An instance of a blueprint that has not been used only retains its snapshot and its share of the
+     * compiled constraints.
+     */
+    public long getRetainedBytes() {
+        FrameSnapshot lastSnapshot = snapshot.get();
+        long bytes = lastSnapshot == null ? 0 : MemoryTrimmer.estimateSnapshotBytes(lastSnapshot);
+        if (pendingBlueprint != null) {
+            return bytes + pendingBlueprint.getConstraints().size() * MemoryTrimmer.COMPILED_CONSTRAINT_BYTES;
+        }
+        int variables = containerNode.getVariableCount();
+        int constraints = containerNode.getConstraintCount();
+        for (ChildNode node : nodesBySlot) {
+            variables += node.getVariableCount();
+            constraints += node.getConstraintCount();
+        }
+        for (TrackedConstraint tracked : addedConstraints.values()) {
+            constraints += tracked.constraint != null ? 1 : 0;
+        }
+        constraints += overlayConstraints.size();
+        return bytes + MemoryTrimmer.SOLVER_BYTES + (nodesBySlot.size() + 1) * MemoryTrimmer.NODE_BYTES +
+                variables * MemoryTrimmer.VARIABLE_BYTES + constraints * MemoryTrimmer.CONSTRAINT_BYTES +
+                addedConstraints.size() * MemoryTrimmer.COMPILED_CONSTRAINT_BYTES;
+    }
+
+    /**
+     * @return true if a child node has an intrinsic width or height, i.e. the solution depends on measuring views
+     */
+    public boolean usesIntrinsicSize() {
+        ensureConstraints();
+        for (ChildNode node : nodesBySlot) {
+            if (node.hasIntrinsicWidth() || node.hasIntrinsicHeight()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the values set with setVariableToValue on custom variables of the container and child nodes, keyed by
+     * nodeName.variableName, e.g. "container.scrollPosition"
+     */
+    Map<String, Double> getSuggestedValues() {
+        HashMap<String, Double> values = new HashMap<String, Double>();
+        if (pendingBlueprint == null) {
+            containerNode.collectSuggestedValues("container", values);
+            for (Map.Entry<String, ChildNode> entry : nodes.entrySet()) {
+                entry.getValue().collectSuggestedValues(entry.getKey(), values);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Sets values keyed by nodeName.variableName, as returned by getSuggestedValues, on the nodes
+     */
+    void applyValues(Map<String, Double> values) {
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            String name = entry.getKey();
+            int separator = name.lastIndexOf('.');
+            String nodeName = name.substring(0, separator);
+            Node node = "container".equals(nodeName) ? getContainerNode() : getNodeByName(nodeName);
+            node.setVariableToValue(name.substring(separator + 1), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns true if the left, top, width or height of the node has changed since the last call to
+     * clearChangedNodes
+     */
+    public boolean hasFrameChanged(Node node) {
+        return changedNodes.contains(node);
+    }
+
+    /**
+     * @return true if the frame of any node has changed since the last call to clearChangedNodes
+     */
+    public boolean hasChangedNodes() {
+        return !changedNodes.isEmpty();
+    }
+
+    public void clearChangedNodes() {
+        changedNodes.clear();
+    }
+
+    /**
+     * @return the frames published by the most recent solve, or null if the model has not been solved. May be called
+     * from any thread.
+     */
+    public FrameSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    private void publishSnapshot() {
+        int slotCount = nodesBySlot.size();
+        if (slots == null || slots.names.length != slotCount) {
+            String[] names = new String[slotCount];
+            for (Map.Entry<String, ChildNode> entry : nodes.entrySet()) {
+                names[entry.getValue().getSlot()] = entry.getKey();
+            }
+            slots = new FrameSnapshot.Slots(names);
+        }
+
+        FrameSnapshot previous = snapshot.get();
+        if (previous != null && previous.getSlots() == slots && isSnapshotCurrent(previous)) {
+            // nothing changed, the published snapshot stays
+            return;
+        }
+
+        float[] frames = new float[slotCount * 4];
+        HashMap<String, Double> variables = new HashMap<String, Double>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            ChildNode node = nodesBySlot.get(slot);
+            frames[slot * 4] = (float) node.getLeft().value();
+            frames[slot * 4 + 1] = (float) node.getTop().value();
+            frames[slot * 4 + 2] = (float) node.getWidth().value();
+            frames[slot * 4 + 3] = (float) node.getHeight().value();
+            node.collectCustomVariableValues(slots.names[slot], variables);
+        }
+        containerNode.collectCustomVariableValues("container", variables);
+
+        FrameSnapshot next = new FrameSnapshot(slots, frames, (float) containerNode.getWidth().value(),
+                (float) containerNode.getHeight().value(), variables, ++solveCount);
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (next.isFrameDifferent(slot, previous)) {
+                changedNodes.add(nodesBySlot.get(slot));
+            }
+        }
+        snapshot.set(next);
+    }
+
+    /**
+     * @return true if the values of the variables are those in the snapshot, which must have the current slots
+     */
+    private boolean isSnapshotCurrent(FrameSnapshot current) {
+        if (current.getContainerWidth() != (float) containerNode.getWidth().value() ||
+                current.getContainerHeight() != (float) containerNode.getHeight().value() ||
+                !containerNode.hasCustomVariableValues("container", current.getVariables())) {
+            return false;
+        }
+        for (int slot = 0; slot < nodesBySlot.size(); slot++) {
+            ChildNode node = nodesBySlot.get(slot);
+            if (!current.containsSlot(slot) ||
+                    current.getLeft(slot) != (float) node.getLeft().value() ||
+                    current.getTop(slot) != (float) node.getTop().value() ||
+                    current.getWidth(slot) != (float) node.getWidth().value() ||
+                    current.getHeight(slot) != (float) node.getHeight().value() ||
+                    !node.hasCustomVariableValues(slots.names[slot], current.getVariables())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the snapshot of the last solve if the slots of the nodes have not been assigned again since, so that
+     * ChildNode.getSlot indexes it, otherwise null. Must be called on the thread owning the model.
+     */
+    FrameSnapshot getCurrentSnapshot() {
+        FrameSnapshot current = snapshot.get();
+        return current != null && current.getSlots() == slots ? current : null;
     }
 }
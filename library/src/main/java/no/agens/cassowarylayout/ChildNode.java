@@ -3,8 +3,6 @@ package no.agens.cassowarylayout;
 import org.pybee.cassowary.SimplexSolver;
 
 import org.pybee.cassowary.Constraint;
-import org.pybee.cassowary.Expression;
-import org.pybee.cassowary.Strength;
 import org.pybee.cassowary.Variable;
 
 /**
@@ -12,21 +10,51 @@ import org.pybee.cassowary.Variable;
  */
 public class ChildNode extends Node {
 
+    private int slot = -1;
+
     public ChildNode(SimplexSolver solver) {
         super(solver);
     }
 
+    /**
+     * @return the index of the frame of this node in a FrameSnapshot, -1 if the node is not part of a model
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+
     @Override
-    protected void createImplicitConstraints(String variableName, Variable variable) {
+    protected boolean isDerivedVariable(String variableName) {
+        return RIGHT.equals(variableName) ||
+                BOTTOM.equals(variableName) ||
+                CENTERX.equals(variableName) ||
+                CENTERY.equals(variableName);
+    }
 
+    @Override
+    protected double getDerivedValue(String variableName) {
         if (RIGHT.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getLeft()).plus(getWidth()), Strength.REQUIRED));
+            return getVariableValue(LEFT) + getVariableValue(WIDTH);
         } else if (BOTTOM.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getTop()).plus(getHeight()), Strength.REQUIRED));
+            return getVariableValue(TOP) + getVariableValue(HEIGHT);
         } else if (CENTERX.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getWidth()).divide(2).plus(getLeft()), Strength.REQUIRED));
+            return getVariableValue(LEFT) + getVariableValue(WIDTH) / 2;
         } else if (CENTERY.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getHeight()).divide(2).plus(getTop()), Strength.REQUIRED));
+            return getVariableValue(TOP) + getVariableValue(HEIGHT) / 2;
+        }
+        return super.getDerivedValue(variableName);
+    }
+
+    @Override
+    protected void createImplicitConstraints(String variableName, Variable variable) {
+
+        Constraint constraint = NodeVariables.createChildConstraint(variableName, variable, this);
+        if (constraint != null) {
+            addImplicitConstraint(constraint);
         }
 
     }
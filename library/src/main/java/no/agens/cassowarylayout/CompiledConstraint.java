@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import org.pybee.cassowary.Constraint;
+import org.pybee.cassowary.Strength;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed constraint that is not bound to the variables of a model: the variable name, operator and strength, and
+ * the expression in postfix form with its constants resolved. Immutable, so it can be shared between models and
+ * threads. Create with ConstraintParser.compileConstraint, or compileConstraints for templates.
+ */
+public final class CompiledConstraint {
+
+    // null for the constraints a template expands to, see ConstraintTemplate
+    final String source;
+    final String variableName;
+    final Constraint.Operator operator;
+    final List<String> postFixExpression;
+    final Double[] constants;
+    final Strength strength;
+    // the child whose absence the constraint is a fallback for, null if the constraint always applies
+    final String ifGone;
+
+    private String canonicalForm;
+    private List<String> nodeNames;
+
+    CompiledConstraint(String source, String variableName, Constraint.Operator operator, List<String> postFixExpression, Double[] constants, Strength strength, String ifGone) {
+        this.source = source;
+        this.variableName = variableName;
+        this.operator = operator;
+        this.postFixExpression = Collections.unmodifiableList(postFixExpression);
+        this.constants = constants;
+        this.strength = strength;
+        this.ifGone = ifGone;
+    }
+
+    /**
+     * @return the constraint with whitespace removed and constants resolved, so that e.g. "a.width == 8dp" and
+     * "a.width==8dp" have the same canonical form
+     */
+    public String getCanonicalForm() {
+        if (canonicalForm == null) {
+            StringBuilder builder = new StringBuilder();
+            if (ifGone != null) {
+                builder.append("@ifGone(").append(ifGone).append(") ");
+            }
+            builder.append(variableName).append(' ').append(operator).append(' ');
+            for (int i = 0; i < postFixExpression.size(); i++) {
+                builder.append(constants[i] != null ? constants[i].toString() : postFixExpression.get(i)).append(' ');
+            }
+            canonicalForm = builder.append('!').append(getStrengthName()).toString();
+        }
+        return canonicalForm;
+    }
+
+    /**
+     * @return the names of the child nodes the constraint refers to, not including the container or the child named by
+     * an @ifGone condition
+     */
+    public List<String> getNodeNames() {
+        if (nodeNames == null) {
+            ArrayList<String> names = new ArrayList<String>();
+            addNodeName(names, variableName);
+            for (int i = 0; i < postFixExpression.size(); i++) {
+                if (constants[i] == null) {
+                    addNodeName(names, postFixExpression.get(i));
+                }
+            }
+            nodeNames = Collections.unmodifiableList(names);
+        }
+        return nodeNames;
+    }
+
+    private static void addNodeName(List<String> names, String variableName) {
+        int separator = variableName.indexOf('.');
+        if (separator == -1) {
+            return;
+        }
+        String nodeName = variableName.substring(0, separator);
+        if (!"container".equals(nodeName) && !"parent".equals(nodeName) && !names.contains(nodeName)) {
+            names.add(nodeName);
+        }
+    }
+
+    /**
+     * @return the child whose absence the constraint is a fallback for, or null if the constraint always applies
+     */
+    public String getIfGone() {
+        return ifGone;
+    }
+
+    private String getStrengthName() {
+        if (strength == Strength.REQUIRED) {
+            return "required";
+        } else if (strength == Strength.STRONG) {
+            return "strong";
+        } else if (strength == Strength.MEDIUM) {
+            return "medium";
+        } else if (strength == Strength.WEAK) {
+            return "weak";
+        }
+        return String.valueOf(strength);
+    }
+
+    @Override
+    public String toString() {
+        return source != null ? source : getCanonicalForm();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.util.Log;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.Interpolator;
+
+import org.pybee.cassowary.Variable;
+
+import java.util.ArrayList;
+
+import no.agens.cassowarylayout.util.FrameScheduler;
+
+/**
+ * Animates variables of the nodes of a layout towards target values. The variables are edit variables of the solver
+ * while the animation runs, on every frame the interpolated values are suggested, the model is resolved once and only
+ * the children whose frame changed are laid out, without measuring. The variables keep their target values when the
+ * animation ends. Constants of constraints can be animated by writing them as a variable, e.g.
+ * "a.left == container.offset". One animator runs on a layout at a time, as the solver has one edit session; cancel
+ * the running one before starting another. Must be used from the main thread, animators still running when the
+ * layout is detached are cancelled.
+ */
+public class ConstraintAnimator {
+
+    private static final String LOG_TAG = "ConstraintAnimator";
+
+    private static final long FRAME_INTERVAL_NANOS = 16666667;
+
+    public interface Listener {
+        void onAnimationEnd(ConstraintAnimator animator);
+    }
+
+    private final CassowaryLayout layout;
+    private final ArrayList<AnimatedVariable> variables = new ArrayList<AnimatedVariable>();
+    private final FrameScheduler frameScheduler;
+
+    private long duration = 300;
+    private Interpolator interpolator = new AccelerateDecelerateInterpolator();
+    private Listener listener;
+
+    private boolean running;
+    private CassowaryModel model;
+    private Node[] nodes;
+    private String[] variableNames;
+    private Variable[] editVariables;
+    private double[] values;
+    private long startTime;
+    private long lastFrameTime;
+
+    private int frameCount;
+    private int droppedFrames;
+    private long totalSolveTime;
+    private long maxSolveTime;
+
+    private static class AnimatedVariable {
+        final String nodeName;
+        final String variableName;
+        final double target;
+        final Interpolator interpolator;
+        double start;
+
+        AnimatedVariable(String nodeName, String variableName, double target, Interpolator interpolator) {
+            this.nodeName = nodeName;
+            this.variableName = variableName;
+            this.target = target;
+            this.interpolator = interpolator;
+        }
+    }
+
+    public ConstraintAnimator(CassowaryLayout layout) {
+        this.layout = layout;
+        frameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                onFrame(frameTimeNanos);
+            }
+        });
+    }
+
+    /**
+     * Animates a variable of a node from its current value to target, "container" refers to the container node.
+     */
+    public ConstraintAnimator animate(String nodeName, String variableName, double target) {
+        return animate(nodeName, variableName, target, null);
+    }
+
+    /**
+     * Animates a variable with its own interpolator instead of the interpolator of the animator. A variable can only
+     * be animated once per animator.
+     */
+    public ConstraintAnimator animate(String nodeName, String variableName, double target, Interpolator interpolator) {
+        if (running) {
+            throw new IllegalStateException("animator is running");
+        }
+        for (AnimatedVariable variable : variables) {
+            if (variable.nodeName.equals(nodeName) && variable.variableName.equals(variableName)) {
+                throw new IllegalArgumentException("already animating " + nodeName + "." + variableName);
+            }
+        }
+        variables.add(new AnimatedVariable(nodeName, variableName, target, interpolator));
+        return this;
+    }
+
+    /**
+     * @param duration the duration in milliseconds
+     */
+    public ConstraintAnimator setDuration(long duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    public ConstraintAnimator setInterpolator(Interpolator interpolator) {
+        this.interpolator = interpolator;
+        return this;
+    }
+
+    public ConstraintAnimator setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public void start() {
+        if (!layout.ownsSetUpModel() || layout.isSolvingInBackground()) {
+            throw new IllegalStateException("animation requires a set up layout owning its model");
+        }
+        if (running) {
+            throw new IllegalStateException("animator is running");
+        }
+        if (layout.getRunningAnimator() != null) {
+            throw new IllegalStateException("another animator is running on the layout");
+        }
+        if (variables.isEmpty()) {
+            throw new IllegalStateException("no variables to animate");
+        }
+        int count = variables.size();
+        model = layout.getCassowaryModel();
+        nodes = new Node[count];
+        variableNames = new String[count];
+        values = new double[count];
+        FrameSnapshot snapshot = model.getSnapshot();
+        for (int i = 0; i < count; i++) {
+            AnimatedVariable variable = variables.get(i);
+            nodes[i] = layout.resolveNode(variable.nodeName);
+            variableNames[i] = variable.variableName;
+            // a variable that has not been solved yet starts at 0, as it would in the solver
+            Double start = snapshot == null ? null : snapshot.getValue(variable.nodeName, variable.variableName);
+            variable.start = start == null ? 0 : start;
+            values[i] = variable.start;
+        }
+        editVariables = model.beginEdit(nodes, variableNames);
+        frameCount = 0;
+        droppedFrames = 0;
+        totalSolveTime = 0;
+        maxSolveTime = 0;
+        startTime = -1;
+        running = true;
+        layout.setRunningAnimator(this);
+        frameScheduler.scheduleFrame();
+    }
+
+    /**
+     * Stops the animation, leaving the variables at their current values.
+     */
+    public void cancel() {
+        if (running) {
+            frameScheduler.cancel();
+            end();
+        }
+    }
+
+    private void end() {
+        running = false;
+        layout.setRunningAnimator(null);
+        model.endEdit(nodes, variableNames, values);
+        FrameSnapshot snapshot = model.getSnapshot();
+        if (layout.getCassowaryModel() == model) {
+            layout.applySnapshot(snapshot);
+        }
+        model = null;
+        nodes = null;
+        editVariables = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames missed between the frames of the last run
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getAverageSolveTimeMicros() {
+        return frameCount == 0 ? 0 : totalSolveTime / frameCount / 1000;
+    }
+
+    public long getMaxSolveTimeMicros() {
+        return maxSolveTime / 1000;
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (startTime == -1) {
+            startTime = frameTimeNanos;
+        } else {
+            droppedFrames += Math.max(0, Math.round((double) (frameTimeNanos - lastFrameTime) / FRAME_INTERVAL_NANOS) - 1);
+        }
+        lastFrameTime = frameTimeNanos;
+
+        float fraction = duration <= 0 ? 1 : Math.min(1, (frameTimeNanos - startTime) / (duration * 1000000f));
+
+        long before = System.nanoTime();
+        for (int i = 0; i < editVariables.length; i++) {
+            AnimatedVariable variable = variables.get(i);
+            Interpolator variableInterpolator = variable.interpolator != null ? variable.interpolator : interpolator;
+            values[i] = variable.start + (variable.target - variable.start) * variableInterpolator.getInterpolation(fraction);
+            model.suggestValue(editVariables[i], values[i]);
+        }
+        model.resolve();
+        FrameSnapshot snapshot = model.getSnapshot();
+        long solveTime = System.nanoTime() - before;
+        totalSolveTime += solveTime;
+        maxSolveTime = Math.max(maxSolveTime, solveTime);
+        frameCount++;
+
+        layout.applySnapshot(snapshot);
+
+        if (fraction < 1) {
+            frameScheduler.scheduleFrame();
+        } else {
+            end();
+            Log.d(LOG_TAG, "animated " + variables.size() + " variables in " + frameCount + " frames, solves averaging " +
+                    getAverageSolveTimeMicros() + " us, max " + getMaxSolveTimeMicros() + " us, " + droppedFrames + " frames dropped");
+            if (listener != null) {
+                listener.onAnimationEnd(this);
+            }
+        }
+    }
+}
@@ -33,6 +33,9 @@ public class ConstraintParser {
 
     private static final Pattern PATTERN = Pattern.compile("\\s*(.*?)\\s*(<=|==|>=|[GL]?EQ)\\s*(.*?)\\s*(!(required|strong|medium|weak))?");
 
+    // a fallback constraint that applies only while the named child is gone, e.g. "@ifGone(b) c.left == a.right"
+    private static final Pattern IF_GONE_PATTERN = Pattern.compile("\\s*@ifGone\\(\\s*([^)\\s]+)\\s*\\)\\s*(.*)");
+
     final static String OPS = "-+/*^";
 
     public interface CassowaryVariableResolver {
@@ -42,36 +45,15 @@ public class ConstraintParser {
     }
 
     public static Constraint parseConstraint(String constraintString, CassowaryVariableResolver variableResolver) {
-
-        Matcher matcher = PATTERN.matcher(constraintString);
-        matcher.find();
-        if (matcher.matches()) {
-            Variable variable = variableResolver.resolveVariable(matcher.group(1));
-            Constraint.Operator operator = parseOperator(matcher.group(2));
-            Expression expression = resolveExpression(matcher.group(3), variableResolver);
-            Strength strength = parseStrength(matcher.group(4));
-            return new Constraint(variable, operator, expression, strength);
-        } else {
-            throw new RuntimeException("could not parse " +   constraintString);
-        }
-
+        return parseConstraint(compileConstraint(constraintString, variableResolver), variableResolver);
     }
 
     //add weight support - Yong
     public static Constraint parseConstraint(String constraintString, CassowaryVariableResolver variableResolver, double weight) {
-
-        Matcher matcher = PATTERN.matcher(constraintString);
-        matcher.find();
-        if (matcher.matches()) {
-            Variable variable = variableResolver.resolveVariable(matcher.group(1));
-            Constraint.Operator operator = parseOperator(matcher.group(2));
-            Expression expression = resolveExpression(matcher.group(3), variableResolver);
-            Strength strength = parseStrength(matcher.group(4));
-            return new Constraint(variable, operator, expression, strength, weight);
-        } else {
-            throw new RuntimeException("could not parse " +   constraintString);
-        }
-
+        CompiledConstraint compiledConstraint = compileConstraint(constraintString, variableResolver);
+        Variable variable = variableResolver.resolveVariable(compiledConstraint.variableName);
+        Expression expression = evaluatePostfix(compiledConstraint.postFixExpression, compiledConstraint.constants, variableResolver);
+        return new Constraint(variable, compiledConstraint.operator, expression, compiledConstraint.strength, weight);
     }
 
     private static Constraint.Operator parseOperator(String operatorString) {
@@ -102,13 +84,74 @@ public class ConstraintParser {
         return strength;
     }
 
+    /**
+     * Parses a constraint into a CompiledConstraint, which can be added to any model without parsing it again.
+     * Constants are resolved once, using the resolver.
+     */
+    public static CompiledConstraint compileConstraint(String constraintString, CassowaryVariableResolver constantResolver) {
+
+        String ifGone = null;
+        String expressionString = constraintString;
+        Matcher ifGoneMatcher = IF_GONE_PATTERN.matcher(constraintString);
+        if (ifGoneMatcher.matches()) {
+            ifGone = ifGoneMatcher.group(1);
+            expressionString = ifGoneMatcher.group(2);
+        }
+
+        Matcher matcher = PATTERN.matcher(expressionString);
+        matcher.find();
+        if (matcher.matches()) {
+            List<String> postFixExpression = infixToPostfix(tokenizeExpression(matcher.group(3)));
+            Double[] constants = new Double[postFixExpression.size()];
+            for (int i = 0; i < constants.length; i++) {
+                String token = postFixExpression.get(i);
+                // tokens with braces are filled in when a template is expanded, see ConstraintTemplate
+                if (!isOperator(token) && token.indexOf('{') == -1) {
+                    Expression constant = constantResolver.resolveConstant(token);
+                    if (constant != null) {
+                        constants[i] = constant.constant();
+                    }
+                }
+            }
+            return new CompiledConstraint(constraintString, matcher.group(1), parseOperator(matcher.group(2)),
+                    postFixExpression, constants, parseStrength(matcher.group(4)), ifGone);
+        } else {
+            throw new RuntimeException("could not parse " +   constraintString);
+        }
+    }
+
+    /**
+     * Compiles a constraint, or all the constraints of a template such as "@for(i = 1..8) a{i}.width == 8dp", and
+     * adds them to compiledConstraints
+     */
+    public static void compileConstraints(String constraintString, CassowaryVariableResolver constantResolver, List<CompiledConstraint> compiledConstraints) {
+        if (ConstraintTemplate.isTemplate(constraintString)) {
+            ConstraintTemplate.compile(constraintString, constantResolver).expand(constantResolver, compiledConstraints);
+        } else {
+            compiledConstraints.add(compileConstraint(constraintString, constantResolver));
+        }
+    }
+
+    public static Constraint parseConstraint(CompiledConstraint compiledConstraint, CassowaryVariableResolver variableResolver) {
+        Variable variable = variableResolver.resolveVariable(compiledConstraint.variableName);
+        Expression expression = evaluatePostfix(compiledConstraint.postFixExpression, compiledConstraint.constants, variableResolver);
+        return new Constraint(variable, compiledConstraint.operator, expression, compiledConstraint.strength);
+    }
+
     public static Expression resolveExpression(String expressionString, CassowaryVariableResolver variableResolver) {
+        return evaluatePostfix(infixToPostfix(tokenizeExpression(expressionString)), null, variableResolver);
+    }
 
-        List<String> postFixExpression = infixToPostfix(tokenizeExpression(expressionString));
+    /**
+     * Evaluates a postfix expression. If constants is given, it holds the resolved constant for each token and
+     * tokens without a constant are variables.
+     */
+    private static Expression evaluatePostfix(List<String> postFixExpression, Double[] constants, CassowaryVariableResolver variableResolver) {
 
         Stack<Expression> linearExpressionsStack = new Stack<Expression>();
 
-        for (String expression : postFixExpression) {
+        for (int i = 0; i < postFixExpression.size(); i++) {
+            String expression = postFixExpression.get(i);
             if ("+".equals(expression)) {
                 linearExpressionsStack.push(linearExpressionsStack.pop().plus(linearExpressionsStack.pop()));
             } else if ("-".equals(expression)) {
@@ -120,7 +163,12 @@ public class ConstraintParser {
             } else if ("*".equals(expression)) {
                 linearExpressionsStack.push(linearExpressionsStack.pop().times(linearExpressionsStack.pop()));
             } else {
-                Expression linearExpression =  variableResolver.resolveConstant(expression);
+                Expression linearExpression;
+                if (constants == null) {
+                    linearExpression = variableResolver.resolveConstant(expression);
+                } else {
+                    linearExpression = constants[i] == null ? null : new Expression(constants[i]);
+                }
                 if (linearExpression == null) {
                     linearExpression = new Expression(variableResolver.resolveVariable(expression));
                 }
@@ -131,6 +179,10 @@ public class ConstraintParser {
         return linearExpressionsStack.pop();
     }
 
+    private static boolean isOperator(String token) {
+        return token.length() == 1 && OPS.indexOf(token.charAt(0)) != -1;
+    }
+
     public static List<String> infixToPostfix(List<String> tokenList) {
 
         Stack<Integer> s = new Stack<Integer>();
@@ -171,9 +223,22 @@ public class ConstraintParser {
         ArrayList<String> tokenList = new ArrayList<String>();
 
         StringBuilder stringBuilder = new StringBuilder();
+        // operators in braces are template arithmetic and part of the token, see ConstraintTemplate
+        int braceDepth = 0;
         int i;
         for (i = 0; i < expressionString.length(); i++) {
             char c = expressionString.charAt(i);
+            if (c == '{') {
+                braceDepth++;
+            } else if (c == '}') {
+                braceDepth--;
+            }
+            if (braceDepth > 0 && c != '{') {
+                if (c != ' ') {
+                    stringBuilder.append(c);
+                }
+                continue;
+            }
             switch (c) {
                 case '+':
                 case '-':
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import org.pybee.cassowary.Expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A constraint repeated over one or more ranges, e.g. the left edges of the tiles of a chess board:
+ *
+ * "@for(c = a..h, r = 1..8) {c}{r}.left == container.tileSize * {#c}"
+ *
+ * Ranges are of integers or single letters and may count down. In braces, a range variable is replaced by its value
+ * and #variable by its zero based position in the range. Braces may also hold integer arithmetic, e.g. {8 - r}.
+ *
+ * The constraint is parsed once. Each expansion only fills in the tokens that hold braces, so the constraint is not
+ * formatted and parsed again for every value.
+ */
+final class ConstraintTemplate {
+
+    private static final Pattern TEMPLATE_PATTERN = Pattern.compile("\\s*@for\\(([^)]*)\\)(.*)");
+    private static final Pattern RANGE_PATTERN = Pattern.compile("\\s*(\\w+)\\s*=\\s*(\\w+)\\s*\\.\\.\\s*(\\w+)\\s*");
+
+    private final String source;
+    private final String[] rangeNames;
+    // the value of each position in each range, as text and as a number, null for letter ranges
+    private final String[][] rangeValues;
+    private final int[][] rangeNumbers;
+
+    private final CompiledConstraint prototype;
+    private final Placeholder variableName;
+    private final Placeholder ifGone;
+    // the placeholders of the tokens of the postfix expression, null for tokens without braces
+    private final Placeholder[] tokens;
+
+    private ConstraintTemplate(String source, String ranges, CompiledConstraint prototype) {
+        this.source = source;
+        String[] declarations = ranges.split(",");
+        rangeNames = new String[declarations.length];
+        rangeValues = new String[declarations.length][];
+        rangeNumbers = new int[declarations.length][];
+        for (int i = 0; i < declarations.length; i++) {
+            parseRange(i, declarations[i]);
+        }
+
+        this.prototype = prototype;
+        variableName = parsePlaceholder(prototype.variableName);
+        ifGone = prototype.ifGone == null ? null : parsePlaceholder(prototype.ifGone);
+        tokens = new Placeholder[prototype.postFixExpression.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = parsePlaceholder(prototype.postFixExpression.get(i));
+        }
+    }
+
+    static boolean isTemplate(String constraintString) {
+        return constraintString.trim().startsWith("@for(");
+    }
+
+    /**
+     * Parses a template, resolving the constants that do not depend on the ranges with the resolver
+     */
+    static ConstraintTemplate compile(String constraintString, ConstraintParser.CassowaryVariableResolver constantResolver) {
+        Matcher matcher = TEMPLATE_PATTERN.matcher(constraintString);
+        if (!matcher.matches()) {
+            throw new RuntimeException("could not parse template " + constraintString);
+        }
+        CompiledConstraint prototype = ConstraintParser.compileConstraint(matcher.group(2), constantResolver);
+        return new ConstraintTemplate(constraintString, matcher.group(1), prototype);
+    }
+
+    /**
+     * @return the number of constraints the template expands to
+     */
+    int size() {
+        int size = 1;
+        for (String[] values : rangeValues) {
+            size *= values.length;
+        }
+        return size;
+    }
+
+    /**
+     * Adds a constraint for every combination of the values of the ranges, varying the last range fastest
+     */
+    void expand(ConstraintParser.CassowaryVariableResolver constantResolver, List<CompiledConstraint> compiledConstraints) {
+        int[] positions = new int[rangeNames.length];
+        int count = size();
+        for (int n = 0; n < count; n++) {
+            compiledConstraints.add(instantiate(positions, constantResolver));
+            for (int i = positions.length - 1; i >= 0; i--) {
+                if (++positions[i] < rangeValues[i].length) {
+                    break;
+                }
+                positions[i] = 0;
+            }
+        }
+    }
+
+    private CompiledConstraint instantiate(int[] positions, ConstraintParser.CassowaryVariableResolver constantResolver) {
+        List<String> postFixExpression = prototype.postFixExpression;
+        Double[] constants = prototype.constants.clone();
+        ArrayList<String> instantiated = null;
+        for (int i = 0; i < tokens.length; i++) {
+            Placeholder token = tokens[i];
+            if (token == null) {
+                continue;
+            }
+            if (instantiated == null) {
+                instantiated = new ArrayList<String>(postFixExpression);
+            }
+            if (token.isArithmetic()) {
+                // e.g. {8 - r}, no need to format and parse the number
+                constants[i] = (double) evaluate(token.getArithmetic(), positions);
+                instantiated.set(i, token.source);
+            } else {
+                String name = token.fill(this, positions);
+                instantiated.set(i, name);
+                Expression constant = constantResolver.resolveConstant(name);
+                constants[i] = constant == null ? null : constant.constant();
+            }
+        }
+        return new CompiledConstraint(null,
+                variableName == null ? prototype.variableName : variableName.fill(this, positions),
+                prototype.operator,
+                instantiated == null ? postFixExpression : instantiated,
+                constants,
+                prototype.strength,
+                ifGone == null ? prototype.ifGone : ifGone.fill(this, positions));
+    }
+
+    private void parseRange(int index, String declaration) {
+        Matcher matcher = RANGE_PATTERN.matcher(declaration);
+        if (!matcher.matches()) {
+            throw new RuntimeException("could not parse range " + declaration + " in template " + source);
+        }
+        rangeNames[index] = matcher.group(1);
+        String first = matcher.group(2);
+        String last = matcher.group(3);
+        int start;
+        int end;
+        boolean letters = first.length() == 1 && last.length() == 1 && Character.isLetter(first.charAt(0)) && Character.isLetter(last.charAt(0));
+        if (letters) {
+            start = first.charAt(0);
+            end = last.charAt(0);
+        } else {
+            try {
+                start = Integer.parseInt(first);
+                end = Integer.parseInt(last);
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("range " + declaration + " must be of integers or single letters in template " + source);
+            }
+        }
+        int step = end >= start ? 1 : -1;
+        int length = Math.abs(end - start) + 1;
+        rangeValues[index] = new String[length];
+        rangeNumbers[index] = letters ? null : new int[length];
+        for (int i = 0; i < length; i++) {
+            int value = start + i * step;
+            rangeValues[index][i] = letters ? String.valueOf((char) value) : String.valueOf(value);
+            if (!letters) {
+                rangeNumbers[index][i] = value;
+            }
+        }
+    }
+
+    /**
+     * @return the parts of a token with braces, or null if the token has none
+     */
+    private Placeholder parsePlaceholder(String token) {
+        if (token.indexOf('{') == -1) {
+            return null;
+        }
+        Placeholder placeholder = new Placeholder(token);
+        int start = 0;
+        while (start < token.length()) {
+            int open = token.indexOf('{', start);
+            if (open == -1) {
+                placeholder.parts.add(token.substring(start));
+                break;
+            }
+            int close = token.indexOf('}', open);
+            if (close == -1) {
+                throw new RuntimeException("unclosed brace in " + token + " in template " + source);
+            }
+            if (open > start) {
+                placeholder.parts.add(token.substring(start, open));
+            }
+            placeholder.parts.add(ConstraintParser.infixToPostfix(ConstraintParser.tokenizeExpression(token.substring(open + 1, close))));
+            start = close + 1;
+        }
+        return placeholder;
+    }
+
+    /**
+     * @return the value of a range variable as text, or of integer arithmetic as a number
+     */
+    private String format(List<String> expression, int[] positions) {
+        if (expression.size() == 1) {
+            int range = getRange(expression.get(0));
+            if (range != -1) {
+                return rangeValues[range][positions[range]];
+            }
+        }
+        return String.valueOf(evaluate(expression, positions));
+    }
+
+    private int evaluate(List<String> expression, int[] positions) {
+        Stack<Integer> stack = new Stack<Integer>();
+        for (String token : expression) {
+            if ("+".equals(token)) {
+                stack.push(stack.pop() + stack.pop());
+            } else if ("-".equals(token)) {
+                int subtrahend = stack.pop();
+                stack.push(stack.pop() - subtrahend);
+            } else if ("*".equals(token)) {
+                stack.push(stack.pop() * stack.pop());
+            } else if ("/".equals(token)) {
+                int divisor = stack.pop();
+                stack.push(stack.pop() / divisor);
+            } else if (token.startsWith("#")) {
+                int range = getRange(token.substring(1));
+                if (range == -1) {
+                    throw new RuntimeException("unknown range " + token + " in template " + source);
+                }
+                stack.push(positions[range]);
+            } else {
+                int range = getRange(token);
+                if (range == -1) {
+                    try {
+                        stack.push(Integer.parseInt(token));
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeException("unknown range " + token + " in template " + source);
+                    }
+                } else if (rangeNumbers[range] == null) {
+                    throw new RuntimeException("letter range " + token + " used in arithmetic, use #" + token + " in template " + source);
+                } else {
+                    stack.push(rangeNumbers[range][positions[range]]);
+                }
+            }
+        }
+        return stack.pop();
+    }
+
+    private int getRange(String name) {
+        for (int i = 0; i < rangeNames.length; i++) {
+            if (rangeNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * A token with braces: literal text and the postfix expressions in the braces, in order
+     */
+    private static final class Placeholder {
+
+        final String source;
+        final List<Object> parts = new ArrayList<Object>();
+
+        Placeholder(String source) {
+            this.source = source;
+        }
+
+        /**
+         * @return true if the token is nothing but integer arithmetic, which evaluates to a constant
+         */
+        boolean isArithmetic() {
+            if (parts.size() != 1 || !(parts.get(0) instanceof List)) {
+                return false;
+            }
+            List<?> expression = (List<?>) parts.get(0);
+            // a single range variable may be a letter, which is part of a name
+            return expression.size() > 1 || !Character.isLetter(((String) expression.get(0)).charAt(0));
+        }
+
+        @SuppressWarnings("unchecked")
+        List<String> getArithmetic() {
+            return (List<String>) parts.get(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        String fill(ConstraintTemplate template, int[] positions) {
+            StringBuilder builder = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    builder.append((String) part);
+                } else {
+                    builder.append(template.format((List<String>) part, positions));
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
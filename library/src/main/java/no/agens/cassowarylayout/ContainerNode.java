@@ -19,9 +19,7 @@ package no.agens.cassowarylayout;
 
 
 import org.pybee.cassowary.Constraint;
-import org.pybee.cassowary.Expression;
 import org.pybee.cassowary.SimplexSolver;
-import org.pybee.cassowary.Strength;
 import org.pybee.cassowary.Variable;
 
 /**
@@ -34,12 +32,26 @@ public class ContainerNode extends Node {
     }
 
     @Override
-    protected void createImplicitConstraints(String variableName, Variable variable) {
+    protected boolean isDerivedVariable(String variableName) {
+        return CENTERX.equals(variableName) || CENTERY.equals(variableName);
+    }
 
+    @Override
+    protected double getDerivedValue(String variableName) {
         if (CENTERX.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getWidth()).divide(2), Strength.REQUIRED));
+            return getVariableValue(WIDTH) / 2;
         } else if (CENTERY.equals(variableName)) {
-            solver.addConstraint(new Constraint(variable, Constraint.Operator.EQ, new Expression(getHeight()).divide(2), Strength.REQUIRED));
+            return getVariableValue(HEIGHT) / 2;
+        }
+        return super.getDerivedValue(variableName);
+    }
+
+    @Override
+    protected void createImplicitConstraints(String variableName, Variable variable) {
+
+        Constraint constraint = NodeVariables.createContainerConstraint(variableName, variable, this);
+        if (constraint != null) {
+            addImplicitConstraint(constraint);
         }
     }
 
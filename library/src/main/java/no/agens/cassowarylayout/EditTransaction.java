@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A batch of variable values for the nodes of a layout or a model, obtained with CassowaryLayout.edit() or
+ * CassowaryModel.edit(). Nothing is applied until commit. Values committed to a layout are held until the next frame,
+ * so that only the last value set for a variable before a frame reaches the solver, which then solves once. Values
+ * committed to a model are set right away, followed by a single solve.
+ */
+public class EditTransaction {
+
+    private final CassowaryLayout layout;
+    private final CassowaryModel model;
+    private final LinkedHashMap<String, Edit> edits = new LinkedHashMap<String, Edit>();
+    private boolean committed;
+
+    static class Edit {
+        final String nodeName;
+        final String variableName;
+        final double value;
+
+        Edit(String nodeName, String variableName, double value) {
+            this.nodeName = nodeName;
+            this.variableName = variableName;
+            this.value = value;
+        }
+
+        String getKey() {
+            return nodeName + "." + variableName;
+        }
+    }
+
+    EditTransaction(CassowaryLayout layout) {
+        this.layout = layout;
+        this.model = null;
+    }
+
+    EditTransaction(CassowaryModel model) {
+        this.layout = null;
+        this.model = model;
+    }
+
+    /**
+     * Sets a variable of a node, "container" refers to the container node.
+     */
+    public EditTransaction setVariableToValue(String nodeName, String variableName, double value) {
+        if (committed) {
+            throw new IllegalStateException("transaction has already been committed");
+        }
+        Edit edit = new Edit(nodeName, variableName, value);
+        edits.put(edit.getKey(), edit);
+        return this;
+    }
+
+    /**
+     * Hands the values to the layout, to be applied on the next frame, in which case it must be called on the main
+     * thread, or sets them on the model and solves it.
+     */
+    public void commit() {
+        if (committed) {
+            throw new IllegalStateException("transaction has already been committed");
+        }
+        committed = true;
+        if (layout != null) {
+            layout.enqueueEdits(edits.values());
+        } else {
+            synchronized (model) {
+                model.applyEdits(edits.values());
+                model.solve();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.util.LruCache;
+
+/**
+ * The measured size and frames of the most recent layouts, keyed by their constraints and measure specs. Used by
+ * layouts with FIRST_FRAME_POLICY_CACHED_MEASUREMENT to lay out their first frame while setup is in progress. Backed
+ * by the SolvedLayoutCache on disk.
+ */
+public class FirstFrameCache {
+
+    private static final int MAX_ENTRIES = 32;
+
+    private static final LruCache<String, Entry> entries = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    public static final class Entry {
+        private final int measuredWidth;
+        private final int measuredHeight;
+        private final FrameSnapshot frames;
+
+        Entry(int measuredWidth, int measuredHeight, FrameSnapshot frames) {
+            this.measuredWidth = measuredWidth;
+            this.measuredHeight = measuredHeight;
+            this.frames = frames;
+        }
+
+        public int getMeasuredWidth() {
+            return measuredWidth;
+        }
+
+        public int getMeasuredHeight() {
+            return measuredHeight;
+        }
+
+        public FrameSnapshot getFrames() {
+            return frames;
+        }
+
+        boolean isSame(Entry other) {
+            if (measuredWidth != other.measuredWidth || measuredHeight != other.measuredHeight ||
+                    frames.getSlotCount() != other.frames.getSlotCount()) {
+                return false;
+            }
+            for (int slot = 0; slot < frames.getSlotCount(); slot++) {
+                if (!frames.getName(slot).equals(other.frames.getName(slot)) || frames.isFrameDifferent(slot, other.frames)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static Entry get(String constraintsKey, int widthMeasureSpec, int heightMeasureSpec) {
+        return entries.get(getKey(constraintsKey, widthMeasureSpec, heightMeasureSpec));
+    }
+
+    /**
+     * @return the entry if it differs from the entry cached before, null otherwise
+     */
+    public static Entry put(String constraintsKey, int widthMeasureSpec, int heightMeasureSpec, int measuredWidth, int measuredHeight, FrameSnapshot frames) {
+        if (frames == null) {
+            return null;
+        }
+        String key = getKey(constraintsKey, widthMeasureSpec, heightMeasureSpec);
+        Entry entry = new Entry(measuredWidth, measuredHeight, frames);
+        Entry previous = entries.put(key, entry);
+        return previous == null || !previous.isSame(entry) ? entry : null;
+    }
+
+    static void put(String constraintsKey, int widthMeasureSpec, int heightMeasureSpec, Entry entry) {
+        entries.put(getKey(constraintsKey, widthMeasureSpec, heightMeasureSpec), entry);
+    }
+
+    public static void clear() {
+        entries.evictAll();
+    }
+
+    private static String getKey(String constraintsKey, int widthMeasureSpec, int heightMeasureSpec) {
+        return constraintsKey + "@" + widthMeasureSpec + "x" + heightMeasureSpec;
+    }
+}
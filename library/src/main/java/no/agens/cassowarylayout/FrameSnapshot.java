@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable copy of the solved frames of a CassowaryModel. The left, top, width and height of every child node
+ * are packed in one array, indexed by the slot of the node. Custom variables are kept by their qualified name,
+ * e.g. "container.scrollPosition". Snapshots can be read from any thread.
+ */
+public final class FrameSnapshot {
+
+    private static final int VALUES_PER_SLOT = 4;
+
+    private final Slots slots;
+    private final float[] frames;
+    private final float containerWidth;
+    private final float containerHeight;
+    private final Map<String, Double> variables;
+    private final long version;
+
+    FrameSnapshot(Slots slots, float[] frames, float containerWidth, float containerHeight, Map<String, Double> variables, long version) {
+        this.slots = slots;
+        this.frames = frames;
+        this.containerWidth = containerWidth;
+        this.containerHeight = containerHeight;
+        this.variables = Collections.unmodifiableMap(variables);
+        this.version = version;
+    }
+
+    public int getSlotCount() {
+        return frames.length / VALUES_PER_SLOT;
+    }
+
+    public boolean containsSlot(int slot) {
+        return slot >= 0 && slot < getSlotCount();
+    }
+
+    /**
+     * @return the slot of the named node, or -1 if the node has no slot in this snapshot
+     */
+    public int getSlot(String nodeName) {
+        Integer slot = slots.slotByName.get(nodeName);
+        return slot == null || !containsSlot(slot) ? -1 : slot;
+    }
+
+    public String getName(int slot) {
+        return slots.names[slot];
+    }
+
+    public float getLeft(int slot) {
+        return frames[slot * VALUES_PER_SLOT];
+    }
+
+    public float getTop(int slot) {
+        return frames[slot * VALUES_PER_SLOT + 1];
+    }
+
+    public float getWidth(int slot) {
+        return frames[slot * VALUES_PER_SLOT + 2];
+    }
+
+    public float getHeight(int slot) {
+        return frames[slot * VALUES_PER_SLOT + 3];
+    }
+
+    /**
+     * @return true if the slot has a different frame in the other snapshot, or does not exist there
+     */
+    public boolean isFrameDifferent(int slot, FrameSnapshot other) {
+        if (other == null || !other.containsSlot(slot)) {
+            return true;
+        }
+        int offset = slot * VALUES_PER_SLOT;
+        for (int i = offset; i < offset + VALUES_PER_SLOT; i++) {
+            if (frames[i] != other.frames[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public float getContainerWidth() {
+        return containerWidth;
+    }
+
+    public float getContainerHeight() {
+        return containerHeight;
+    }
+
+    /**
+     * @return the value of a custom variable, e.g. "container.scrollPosition", or null if there is no such variable
+     */
+    public Double getVariable(String qualifiedName) {
+        return variables.get(qualifiedName);
+    }
+
+    public Map<String, Double> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return the solved value of a variable of a node, e.g. "left" or "scrollPosition", "container" refers to the
+     * container. Null if the snapshot has no such node or variable.
+     */
+    public Double getValue(String nodeName, String variableName) {
+        boolean container = "container".equals(nodeName);
+        int slot = container ? -1 : getSlot(nodeName);
+        if (!container && slot == -1) {
+            return null;
+        }
+        float left = container ? 0 : getLeft(slot);
+        float top = container ? 0 : getTop(slot);
+        float width = container ? containerWidth : getWidth(slot);
+        float height = container ? containerHeight : getHeight(slot);
+        if (Node.LEFT.equals(variableName) || "x".equals(variableName)) {
+            return (double) left;
+        } else if (Node.TOP.equals(variableName) || "y".equals(variableName)) {
+            return (double) top;
+        } else if (Node.WIDTH.equals(variableName)) {
+            return (double) width;
+        } else if (Node.HEIGHT.equals(variableName)) {
+            return (double) height;
+        } else if (Node.RIGHT.equals(variableName) || "x2".equals(variableName)) {
+            return (double) (left + width);
+        } else if (Node.BOTTOM.equals(variableName) || "y2".equals(variableName)) {
+            return (double) (top + height);
+        } else if (Node.CENTERX.equals(variableName)) {
+            return (double) (left + width / 2);
+        } else if (Node.CENTERY.equals(variableName)) {
+            return (double) (top + height / 2);
+        }
+        return variables.get(nodeName + "." + variableName);
+    }
+
+    /**
+     * @return a number that increases with every solve of the model the snapshot was taken from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    Slots getSlots() {
+        return slots;
+    }
+
+    /**
+     * The node names of a model by slot. Replaced, never modified, when nodes are added so that snapshots can share it.
+     */
+    static final class Slots {
+        final String[] names;
+        final Map<String, Integer> slotByName;
+
+        Slots(String[] names) {
+            this.names = names;
+            HashMap<String, Integer> slotByName = new HashMap<String, Integer>();
+            for (int i = 0; i < names.length; i++) {
+                slotByName.put(names[i], i);
+            }
+            this.slotByName = slotByName;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+/**
+ * The outcome of a headless CassowaryModel.measure: the size of the container content area and the frames of all
+ * nodes, relative to the content area.
+ */
+public final class MeasureResult {
+
+    private final int width;
+    private final int height;
+    private final FrameSnapshot frames;
+
+    MeasureResult(int width, int height, FrameSnapshot frames) {
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public FrameSnapshot getFrames() {
+        return frames;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Keeps track of detached CassowaryLayouts and releases their solvers when the system is low on memory. A released
+ * layout keeps its constraints in compiled form, its last frames and the values set on its model, and sets up a new
+ * solver from them when it is next measured. The layouts are held weakly, the trimmer never keeps a layout alive.
+ *
+ * Also estimates the memory retained by models, see CassowaryModel.getRetainedBytes. The estimates are rough sizes of
+ * the objects involved, meant for comparing layouts rather than for exact accounting.
+ */
+public class MemoryTrimmer implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = "MemoryTrimmer";
+
+    static final int SOLVER_BYTES = 2048;
+    static final int NODE_BYTES = 96;
+    static final int VARIABLE_BYTES = 128;
+    static final int CONSTRAINT_BYTES = 256;
+    static final int COMPILED_CONSTRAINT_BYTES = 160;
+    private static final int SLOT_BYTES = 48;
+    private static final int SNAPSHOT_VARIABLE_BYTES = 64;
+
+    private static MemoryTrimmer instance;
+
+    private final WeakHashMap<CassowaryLayout, Boolean> detachedLayouts = new WeakHashMap<CassowaryLayout, Boolean>();
+    private boolean registered;
+
+    private long releasedCount;
+    private long releasedBytes;
+
+    public static synchronized MemoryTrimmer getInstance() {
+        if (instance == null) {
+            instance = new MemoryTrimmer();
+        }
+        return instance;
+    }
+
+    void addDetachedLayout(Context context, CassowaryLayout layout) {
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(this);
+            registered = true;
+        }
+        detachedLayouts.put(layout, Boolean.TRUE);
+    }
+
+    void removeDetachedLayout(CassowaryLayout layout) {
+        detachedLayouts.remove(layout);
+    }
+
+    /**
+     * Releases the solvers of all detached layouts. Must be called on the main thread.
+     * @return the estimated number of bytes released
+     */
+    public long releaseDetachedLayouts() {
+        long before = System.nanoTime();
+        long bytes = 0;
+        int released = 0;
+        // releasing may not modify the map, but copy it so that layouts can be collected meanwhile
+        for (CassowaryLayout layout : new ArrayList<CassowaryLayout>(detachedLayouts.keySet())) {
+            long retained = layout.getRetainedBytes();
+            if (layout.releaseSolver()) {
+                bytes += retained - layout.getRetainedBytes();
+                released++;
+            }
+        }
+        releasedCount += released;
+        releasedBytes += bytes;
+        Log.d(LOG_TAG, "released " + released + " of " + detachedLayouts.size() + " detached layouts, about " + bytes +
+                " bytes, took " + TimerUtil.since(before));
+        return bytes;
+    }
+
+    /**
+     * @return the estimated number of bytes retained by the models of the detached layouts
+     */
+    public long getDetachedRetainedBytes() {
+        long bytes = 0;
+        for (CassowaryLayout layout : detachedLayouts.keySet()) {
+            bytes += layout.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    public int getDetachedLayoutCount() {
+        return detachedLayouts.size();
+    }
+
+    /**
+     * @return the number of times the solver of a layout has been released
+     */
+    public long getReleasedCount() {
+        return releasedCount;
+    }
+
+    /**
+     * @return the estimated number of bytes released in total
+     */
+    public long getReleasedBytes() {
+        return releasedBytes;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            releaseDetachedLayouts();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        releaseDetachedLayouts();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    static long estimateSnapshotBytes(FrameSnapshot snapshot) {
+        return (long) snapshot.getSlotCount() * SLOT_BYTES + (long) snapshot.getVariables().size() * SNAPSHOT_VARIABLE_BYTES;
+    }
+}
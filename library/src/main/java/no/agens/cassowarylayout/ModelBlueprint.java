@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * The immutable, shareable part of a model: its constraints compiled once and the frames solved for them with no
+ * values set. Instances start out reporting the base snapshot and only build their own solver from the compiled
+ * constraints when they are first edited, measured or solved. Many layouts with the same constraints, e.g. cards in
+ * a list, share one blueprint. A blueprint of a resource is compiled again when the configuration has changed.
+ */
+public final class ModelBlueprint {
+
+    private static final String LOG_TAG = "ModelBlueprint";
+
+    private static final SparseArray<ModelBlueprint> blueprintsByResource = new SparseArray<ModelBlueprint>();
+
+    private final Context context;
+    private final List<CompiledConstraint> constraints;
+    private final FrameSnapshot baseSnapshot;
+    private final ResourceConfiguration configuration;
+
+    private ModelBlueprint(Context context, List<CompiledConstraint> constraints, FrameSnapshot baseSnapshot) {
+        this.context = context;
+        this.constraints = constraints;
+        this.baseSnapshot = baseSnapshot;
+        this.configuration = ResourceConfiguration.of(context);
+    }
+
+    public static ModelBlueprint compile(Context context, CharSequence[] constraints) {
+        long timeBefore = System.nanoTime();
+        Context applicationContext = context.getApplicationContext();
+
+        CassowaryModel baseModel = new CassowaryModel(applicationContext);
+        ArrayList<CompiledConstraint> compiledConstraints = new ArrayList<CompiledConstraint>(constraints.length);
+        for (CharSequence constraint : constraints) {
+            try {
+                ConstraintParser.compileConstraints(constraint.toString(), baseModel.cassowaryVariableResolver, compiledConstraints);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "could not compile constraint " + constraint.toString(), e);
+            }
+        }
+        baseModel.addConstraints(compiledConstraints);
+        baseModel.solve();
+
+        Log.d(LOG_TAG, "compile took " + TimerUtil.since(timeBefore));
+        return new ModelBlueprint(applicationContext, Collections.unmodifiableList(compiledConstraints), baseModel.getSnapshot());
+    }
+
+    /**
+     * @return the shared blueprint for a constraints resource, compiled on first use and whenever the configuration
+     * of the context differs from the one it was compiled for
+     */
+    public static ModelBlueprint forResource(Context context, int constraintsResId) {
+        synchronized (blueprintsByResource) {
+            ModelBlueprint blueprint = blueprintsByResource.get(constraintsResId);
+            if (blueprint == null || !blueprint.configuration.matches(context.getApplicationContext())) {
+                blueprint = compile(context, context.getResources().getTextArray(constraintsResId));
+                blueprintsByResource.put(constraintsResId, blueprint);
+            }
+            return blueprint;
+        }
+    }
+
+    /**
+     * Drops the shared blueprints, e.g. to release their memory
+     */
+    public static void clearResourceBlueprints() {
+        synchronized (blueprintsByResource) {
+            blueprintsByResource.clear();
+        }
+    }
+
+    /**
+     * @return a blueprint of constraints compiled before, e.g. those of a model whose solver is released, reporting the
+     * snapshot until an instance is used
+     */
+    static ModelBlueprint of(Context context, List<CompiledConstraint> constraints, FrameSnapshot snapshot) {
+        return new ModelBlueprint(context.getApplicationContext(), Collections.unmodifiableList(constraints), snapshot);
+    }
+
+    public CassowaryModel newInstance() {
+        return new CassowaryModel(context, this);
+    }
+
+    public List<CompiledConstraint> getConstraints() {
+        return constraints;
+    }
+
+    /**
+     * @return the frames solved for the constraints with no values set
+     */
+    public FrameSnapshot getBaseSnapshot() {
+        return baseSnapshot;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps set up models released by CassowaryLayouts with cassowary:recycleModel, keyed by the constraints resource
+ * they were set up from. A released model keeps its constraints, only the values set on its nodes are reset, so a
+ * layout inflated from the same resource can adopt it without parsing. The pool is bounded and trimmed when the
+ * system is low on memory.
+ */
+public class ModelPool implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = "ModelPool";
+
+    private static final int DEFAULT_MAX_SIZE = 16;
+
+    private static ModelPool instance;
+
+    // pooled models, least recently released first
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private boolean registered;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class Entry {
+        final int constraintsResId;
+        final CassowaryModel model;
+
+        Entry(int constraintsResId, CassowaryModel model) {
+            this.constraintsResId = constraintsResId;
+            this.model = model;
+        }
+    }
+
+    public static synchronized ModelPool getInstance() {
+        if (instance == null) {
+            instance = new ModelPool();
+        }
+        return instance;
+    }
+
+    /**
+     * @return a pooled model set up from the constraints resource, or null if there is none
+     */
+    public synchronized CassowaryModel acquire(int constraintsResId) {
+        Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.constraintsResId == constraintsResId) {
+                iterator.remove();
+                hits++;
+                return entry.model;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Resets the values of the model and pools it. The caller must not use the model afterwards.
+     */
+    public void release(Context context, int constraintsResId, CassowaryModel model) {
+        model.resetValues();
+        synchronized (this) {
+            if (!registered) {
+                context.getApplicationContext().registerComponentCallbacks(this);
+                registered = true;
+            }
+            entries.addLast(new Entry(constraintsResId, model));
+            trimToSize(maxSize);
+        }
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of models dropped because the pool was full or memory was low
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(entries.size() / 2);
+        }
+    }
+
+    @Override
+    public synchronized void onLowMemory() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // dimensions in the constraints may depend on the configuration
+        clear();
+        ModelBlueprint.clearResourceBlueprints();
+    }
+
+    private void trimToSize(int size) {
+        int evicted = 0;
+        while (entries.size() > size) {
+            entries.removeFirst();
+            evicted++;
+        }
+        if (evicted > 0) {
+            evictions += evicted;
+            Log.d(LOG_TAG, "evicted " + evicted + " models, " + entries.size() + " pooled");
+        }
+    }
+}
@@ -19,11 +19,17 @@ package no.agens.cassowarylayout;
 
 
 import org.pybee.cassowary.Constraint;
+import org.pybee.cassowary.ConstraintNotFound;
 import org.pybee.cassowary.SimplexSolver;
+import org.pybee.cassowary.Strength;
 import org.pybee.cassowary.Variable;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import no.agens.cassowarylayout.util.CassowaryUtil;
 import no.agens.cassowarylayout.util.TimerUtil;
@@ -31,7 +37,7 @@ import no.agens.cassowarylayout.util.TimerUtil;
 /**
  * Created by alex on 25/09/2014.
  */
-public abstract class Node {
+public abstract class Node implements NodeVariables.Lookup {
 
     private static final String LOG_TAG = "CassowaryNode";
 
@@ -40,16 +46,25 @@ public abstract class Node {
     protected HashMap<String, Variable> variables = new HashMap<String, Variable>();
     protected HashMap<String, Constraint> constraints = new HashMap<String, Constraint>();
 
-    public static final String LEFT = "left";
-    public static final String RIGHT = "right";
-    public static final String TOP = "top";
-    public static final String BOTTOM = "bottom";
-    public static final String HEIGHT = "height";
-    public static final String WIDTH = "width";
-    public static final String CENTERX = "centerX";
-    public static final String CENTERY = "centerY";
-    public static final String INTRINSIC_WIDTH = "intrinsicWidth";
-    public static final String INTRINSIC_HEIGHT = "intrinsicHeight";
+    // the constraints defining derived variables such as right in terms of the base variables
+    private ArrayList<Constraint> implicitConstraints = new ArrayList<Constraint>();
+
+    // the values set on custom variables, e.g. scrollPosition, kept so that they can be saved with the layout
+    private HashMap<String, Double> suggestedValues = new HashMap<String, Double>();
+
+    public static final String LEFT = NodeVariables.LEFT;
+    public static final String RIGHT = NodeVariables.RIGHT;
+    public static final String TOP = NodeVariables.TOP;
+    public static final String BOTTOM = NodeVariables.BOTTOM;
+    public static final String HEIGHT = NodeVariables.HEIGHT;
+    public static final String WIDTH = NodeVariables.WIDTH;
+    public static final String CENTERX = NodeVariables.CENTERX;
+    public static final String CENTERY = NodeVariables.CENTERY;
+    public static final String INTRINSIC_WIDTH = NodeVariables.INTRINSIC_WIDTH;
+    public static final String INTRINSIC_HEIGHT = NodeVariables.INTRINSIC_HEIGHT;
+
+    private static final HashSet<String> BUILT_IN_VARIABLES = new HashSet<String>(Arrays.asList(
+            LEFT, RIGHT, TOP, BOTTOM, HEIGHT, WIDTH, CENTERX, CENTERY, INTRINSIC_WIDTH, INTRINSIC_HEIGHT));
 
     public Node(SimplexSolver solver) {
         this.solver = solver;
@@ -100,6 +115,9 @@ public abstract class Node {
         Constraint constraint = constraints.get(nameVariable);
         constraint = CassowaryUtil.createOrUpdateLinearEquationConstraint(getVariable(nameVariable), constraint, value, solver);
         constraints.put(nameVariable, constraint);
+        if (!BUILT_IN_VARIABLES.contains(getCanonicalName(nameVariable))) {
+            suggestedValues.put(getCanonicalName(nameVariable), value);
+        }
         Log.d(LOG_TAG, "setVariableToValue name " + nameVariable + " value " + value + " took " + TimerUtil.since(timeBefore));
     }
 
@@ -108,6 +126,69 @@ public abstract class Node {
         Constraint constraint = constraints.get(nameVariable);
         constraint =  CassowaryUtil.createOrUpdateLeqInequalityConstraint(getVariable(nameVariable), constraint, value, solver);
         constraints.put(nameVariable, constraint);
+        suggestedValues.remove(getCanonicalName(nameVariable));
+    }
+
+    /**
+     * Makes the variable an edit variable of the solver, so that values can be suggested for it without adding and
+     * removing a constraint per value. The value set on the variable is removed, see CassowaryModel.beginEdit.
+     */
+    Variable addEditVariable(String nameVariable) {
+        Constraint constraint = constraints.remove(nameVariable);
+        if (constraint != null) {
+            try {
+                solver.removeConstraint(constraint);
+            } catch (ConstraintNotFound constraintNotFound) {
+                constraintNotFound.printStackTrace();
+            }
+        }
+        Variable variable = getVariable(nameVariable);
+        solver.addEditVar(variable, Strength.STRONG);
+        return variable;
+    }
+
+    /**
+     * Removes the constraints added by setVariableToValue and setVariableToAtMost, including intrinsic sizes
+     */
+    void clearValues() {
+        for (Constraint constraint : constraints.values()) {
+            try {
+                solver.removeConstraint(constraint);
+            } catch (ConstraintNotFound constraintNotFound) {
+                constraintNotFound.printStackTrace();
+            }
+        }
+        constraints.clear();
+        suggestedValues.clear();
+    }
+
+    /**
+     * Removes all constraints of this node from the solver, the values set on it as well as its implicit constraints
+     */
+    void removeFromSolver() {
+        clearValues();
+        for (Constraint constraint : implicitConstraints) {
+            try {
+                solver.removeConstraint(constraint);
+            } catch (ConstraintNotFound constraintNotFound) {
+                constraintNotFound.printStackTrace();
+            }
+        }
+        implicitConstraints.clear();
+    }
+
+    /**
+     * @return the number of variables of this node, see CassowaryModel.getRetainedBytes
+     */
+    int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * @return the number of implicit constraints and constraints added by setting values on this node
+     */
+    int getConstraintCount() {
+        return implicitConstraints.size() + constraints.size();
     }
 
     public boolean hasIntrinsicHeight() {
@@ -143,23 +224,77 @@ public abstract class Node {
         return variables.containsKey(name);
     }
 
+    /**
+     * Puts the values of the variables that are not built in, e.g. scrollPosition, into target keyed by
+     * nodeName.variableName
+     */
+    void collectCustomVariableValues(String nodeName, Map<String, Double> target) {
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            if (!BUILT_IN_VARIABLES.contains(entry.getKey())) {
+                target.put(nodeName + "." + entry.getKey(), entry.getValue().value());
+            }
+        }
+    }
+
+    /**
+     * @return true if values holds the value of every custom variable of this node, keyed as by
+     * collectCustomVariableValues
+     */
+    boolean hasCustomVariableValues(String nodeName, Map<String, Double> values) {
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            if (!BUILT_IN_VARIABLES.contains(entry.getKey())) {
+                Double value = values.get(nodeName + "." + entry.getKey());
+                if (value == null || value != entry.getValue().value()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the values set with setVariableToValue on custom variables into target keyed by nodeName.variableName
+     */
+    void collectSuggestedValues(String nodeName, Map<String, Double> target) {
+        for (Map.Entry<String, Double> entry : suggestedValues.entrySet()) {
+            target.put(nodeName + "." + entry.getKey(), entry.getValue());
+        }
+    }
+
     protected abstract void createImplicitConstraints(String variableName, Variable variable);
 
+    protected void addImplicitConstraint(Constraint constraint) {
+        solver.addConstraint(constraint);
+        implicitConstraints.add(constraint);
+    }
+
     private String getCanonicalName(String name) {
-        String canonicalName = name;
-        if ("x".equals(name)) {
-            canonicalName = LEFT;
-        } else if ("y".equals(name)) {
-            canonicalName = TOP;
-        } else if ("x2".equals(name)) {
-            canonicalName = RIGHT;
-        } else if ("y2".equals(name)) {
-            canonicalName = BOTTOM;
-        }
-        return canonicalName;
+        return NodeVariables.getCanonicalName(name);
     }
 
+    /**
+     * Returns the solved value of the variable. Derived variables (such as right or bottom) that have not been
+     * referenced by a constraint are computed from the solved base variables instead of being added to the solver.
+     */
     public double getVariableValue(String variableName) {
+        variableName = getCanonicalName(variableName);
+        if (!variables.containsKey(variableName) && isDerivedVariable(variableName)) {
+            return getDerivedValue(variableName);
+        }
         return getVariable(variableName).value();
     }
+
+    /**
+     * @return true if createImplicitConstraints defines the variable in terms of other variables of this node
+     */
+    protected boolean isDerivedVariable(String variableName) {
+        return false;
+    }
+
+    /**
+     * Computes the value of a derived variable from the solved values of the variables it is defined by.
+     */
+    protected double getDerivedValue(String variableName) {
+        throw new IllegalArgumentException(variableName + " is not a derived variable");
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import org.pybee.cassowary.Constraint;
+import org.pybee.cassowary.Expression;
+import org.pybee.cassowary.Strength;
+import org.pybee.cassowary.Variable;
+
+/**
+ * The names of the variables of nodes and the implicit constraints defining the derived ones, e.g. right in terms of
+ * left and width. Plain Java, so that the offline solver in buildSrc defines nodes the way Node does.
+ */
+public final class NodeVariables {
+
+    /**
+     * Looks up the variables of a node by name, creating them on first use
+     */
+    public interface Lookup {
+        Variable getVariable(String name);
+    }
+
+    public static final String LEFT = "left";
+    public static final String RIGHT = "right";
+    public static final String TOP = "top";
+    public static final String BOTTOM = "bottom";
+    public static final String HEIGHT = "height";
+    public static final String WIDTH = "width";
+    public static final String CENTERX = "centerX";
+    public static final String CENTERY = "centerY";
+    public static final String INTRINSIC_WIDTH = "intrinsicWidth";
+    public static final String INTRINSIC_HEIGHT = "intrinsicHeight";
+
+    private NodeVariables() {
+    }
+
+    /**
+     * @return the name of the variable that an alias such as x or y2 refers to
+     */
+    public static String getCanonicalName(String name) {
+        String canonicalName = name;
+        if ("x".equals(name)) {
+            canonicalName = LEFT;
+        } else if ("y".equals(name)) {
+            canonicalName = TOP;
+        } else if ("x2".equals(name)) {
+            canonicalName = RIGHT;
+        } else if ("y2".equals(name)) {
+            canonicalName = BOTTOM;
+        }
+        return canonicalName;
+    }
+
+    /**
+     * @return the constraint defining a derived variable of a child node, or null if the variable is not derived
+     */
+    public static Constraint createChildConstraint(String variableName, Variable variable, Lookup node) {
+        if (RIGHT.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(LEFT)).plus(node.getVariable(WIDTH)), Strength.REQUIRED);
+        } else if (BOTTOM.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(TOP)).plus(node.getVariable(HEIGHT)), Strength.REQUIRED);
+        } else if (CENTERX.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(WIDTH)).divide(2).plus(node.getVariable(LEFT)), Strength.REQUIRED);
+        } else if (CENTERY.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(HEIGHT)).divide(2).plus(node.getVariable(TOP)), Strength.REQUIRED);
+        }
+        return null;
+    }
+
+    /**
+     * @return the constraint defining a derived variable of a container node, or null if the variable is not derived
+     */
+    public static Constraint createContainerConstraint(String variableName, Variable variable, Lookup node) {
+        if (CENTERX.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(WIDTH)).divide(2), Strength.REQUIRED);
+        } else if (CENTERY.equals(variableName)) {
+            return new Constraint(variable, Constraint.Operator.EQ, new Expression(node.getVariable(HEIGHT)).divide(2), Strength.REQUIRED);
+        }
+        return null;
+    }
+}
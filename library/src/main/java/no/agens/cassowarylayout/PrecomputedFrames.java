@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Frames solved at build time by the PrecomputeFramesTask in buildSrc, read from the raw resource
+ * cassowary_precomputed_frames of the app. A layout whose constraints and exact content size match an entry for the
+ * density of the device is laid out from the entry without setting up its model. Entries are looked up by array name,
+ * which identifies the constraints as the task skips arrays overridden in qualified values directories.
+ */
+public class PrecomputedFrames {
+
+    private static final String LOG_TAG = "PrecomputedFrames";
+
+    public static final String RESOURCE_NAME = "cassowary_precomputed_frames";
+
+    // must match PrecomputeFramesTask
+    private static final int MAGIC = 0x43505246;
+    private static final int FORMAT_VERSION = 1;
+
+    private static PrecomputedFrames instance;
+
+    // entries for the density of the device by constraints array name
+    private final HashMap<String, ArrayList<Entry>> entriesByConstraints = new HashMap<String, ArrayList<Entry>>();
+
+    private static class Entry {
+        final int width;
+        final int height;
+        final FrameSnapshot frames;
+
+        Entry(int width, int height, FrameSnapshot frames) {
+            this.width = width;
+            this.height = height;
+            this.frames = frames;
+        }
+    }
+
+    public static synchronized PrecomputedFrames getInstance(Context context) {
+        if (instance == null) {
+            instance = new PrecomputedFrames(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PrecomputedFrames(Context context) {
+        Resources resources = context.getResources();
+        int id = resources.getIdentifier(RESOURCE_NAME, "raw", context.getPackageName());
+        if (id != 0) {
+            read(resources, id, resources.getDisplayMetrics().densityDpi);
+        }
+    }
+
+    public boolean hasFrames(String constraintsName) {
+        return entriesByConstraints.containsKey(constraintsName);
+    }
+
+    /**
+     * @return the frames precomputed for the constraints and the exact size of the container content area, or null
+     */
+    public FrameSnapshot getFrames(String constraintsName, int width, int height) {
+        ArrayList<Entry> entries = entriesByConstraints.get(constraintsName);
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.width == width && entry.height == height) {
+                    return entry.frames;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void read(Resources resources, int id, int densityDpi) {
+        long timeBefore = System.nanoTime();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(resources.openRawResource(id)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                Log.e(LOG_TAG, RESOURCE_NAME + " was written by another version");
+                return;
+            }
+            int constraintsCount = input.readInt();
+            for (int i = 0; i < constraintsCount; i++) {
+                String constraintsName = input.readUTF();
+                int configurationCount = input.readInt();
+                for (int j = 0; j < configurationCount; j++) {
+                    int entryDensityDpi = input.readInt();
+                    int width = input.readInt();
+                    int height = input.readInt();
+                    String[] names = new String[input.readInt()];
+                    for (int slot = 0; slot < names.length; slot++) {
+                        names[slot] = input.readUTF();
+                    }
+                    float[] frames = new float[names.length * 4];
+                    for (int k = 0; k < frames.length; k++) {
+                        frames[k] = input.readFloat();
+                    }
+                    if (entryDensityDpi == densityDpi) {
+                        addEntry(constraintsName, new Entry(width, height, new FrameSnapshot(new FrameSnapshot.Slots(names),
+                                frames, width, height, new HashMap<String, Double>(), 0)));
+                    }
+                }
+            }
+            Log.d(LOG_TAG, "read " + entriesByConstraints.size() + " layouts took " + TimerUtil.since(timeBefore));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not read " + RESOURCE_NAME, e);
+            entriesByConstraints.clear();
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void addEntry(String constraintsName, Entry entry) {
+        ArrayList<Entry> entries = entriesByConstraints.get(constraintsName);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            entriesByConstraints.put(constraintsName, entries);
+        }
+        entries.add(entry);
+    }
+}
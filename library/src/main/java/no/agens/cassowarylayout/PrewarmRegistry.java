@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View.MeasureSpec;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Sets up models for constraint resources ahead of inflation, e.g. from Application.onCreate. Every registration
+ * parses and solves one model on the SetupScheduler. A CassowaryLayout inflated with the same cassowary:constraints
+ * resource adopts a prewarmed model instead of setting up its own, unless the configuration has changed since the
+ * model was set up.
+ */
+public class PrewarmRegistry {
+
+    private static final String LOG_TAG = "PrewarmRegistry";
+
+    private static PrewarmRegistry instance;
+
+    // models that are set up and not yet taken, by constraints resource id
+    private final SparseArray<LinkedList<ReadyModel>> readyModels = new SparseArray<LinkedList<ReadyModel>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class ReadyModel {
+        final CassowaryModel model;
+        final ResourceConfiguration configuration;
+
+        ReadyModel(CassowaryModel model, ResourceConfiguration configuration) {
+            this.model = model;
+            this.configuration = configuration;
+        }
+    }
+
+    public static synchronized PrewarmRegistry getInstance() {
+        if (instance == null) {
+            instance = new PrewarmRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Prewarms one model for the constraints resource. Register a resource once for every layout using it that
+     * should start prewarmed.
+     */
+    public void register(Context context, int constraintsResId) {
+        register(context, constraintsResId, -1, -1);
+    }
+
+    /**
+     * Prewarms one model for the constraints resource, solved for the expected size of the container content area,
+     * so that the first measure at that size finds the solution in place.
+     */
+    public void register(Context context, final int constraintsResId, final int containerWidth, final int containerHeight) {
+        final Context applicationContext = context.getApplicationContext();
+        synchronized (readyModels) {
+            if (readyModels.get(constraintsResId) == null) {
+                readyModels.put(constraintsResId, new LinkedList<ReadyModel>());
+            }
+        }
+        SetupScheduler.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                long timeBefore = System.nanoTime();
+                ResourceConfiguration configuration = ResourceConfiguration.of(applicationContext);
+                CassowaryModel model = new CassowaryModel(applicationContext);
+                model.addConstraints(constraintsResId);
+                if (containerWidth >= 0 && containerHeight >= 0) {
+                    CassowaryModel.setMeasureSpecOnContainer(model.getContainerNode(),
+                            MeasureSpec.EXACTLY, containerWidth, MeasureSpec.EXACTLY, containerHeight);
+                }
+                model.solve();
+                synchronized (readyModels) {
+                    LinkedList<ReadyModel> models = readyModels.get(constraintsResId);
+                    if (models != null) {
+                        models.add(new ReadyModel(model, configuration));
+                    }
+                }
+                Log.d(LOG_TAG, "prewarmed " + constraintsResId + " took " + TimerUtil.since(timeBefore));
+            }
+        }, SetupScheduler.PRIORITY_ATTACHED);
+    }
+
+    /**
+     * Takes a prewarmed model for the constraints resource. Models still being set up are not waited for, models set
+     * up for another configuration than that of the context are dropped.
+     * @return the model, or null if none is ready
+     */
+    public CassowaryModel take(Context context, int constraintsResId) {
+        CassowaryModel model = null;
+        synchronized (readyModels) {
+            LinkedList<ReadyModel> models = readyModels.get(constraintsResId);
+            if (models == null) {
+                // not registered, neither a hit nor a miss
+                return null;
+            }
+            while (model == null && !models.isEmpty()) {
+                ReadyModel ready = models.removeFirst();
+                if (ready.configuration.matches(context.getApplicationContext())) {
+                    model = ready.model;
+                } else {
+                    Log.d(LOG_TAG, "dropped " + constraintsResId + " prewarmed for another configuration");
+                }
+            }
+        }
+        if (model != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return model;
+    }
+
+    /**
+     * Drops all registrations and the prewarmed models that have not been taken.
+     */
+    public void clear() {
+        synchronized (readyModels) {
+            readyModels.clear();
+        }
+    }
+
+    /**
+     * @return the number of layouts that adopted a prewarmed model
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of layouts inflated from a registered constraints resource that found no prewarmed model ready
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.util.DisplayMetrics;
+
+/**
+ * The configuration that constraints resources and the dimensions in them were resolved for: the qualifiers, font
+ * scale and display density. Anything set up from a resource is only valid while it matches the current one.
+ */
+final class ResourceConfiguration {
+
+    private final Configuration configuration;
+    private final int densityDpi;
+    private final float scaledDensity;
+
+    private ResourceConfiguration(Configuration configuration, int densityDpi, float scaledDensity) {
+        this.configuration = configuration;
+        this.densityDpi = densityDpi;
+        this.scaledDensity = scaledDensity;
+    }
+
+    static ResourceConfiguration of(Context context) {
+        Resources resources = context.getResources();
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        return new ResourceConfiguration(new Configuration(resources.getConfiguration()), metrics.densityDpi,
+                metrics.scaledDensity);
+    }
+
+    /**
+     * @return true if resources of the context resolve as they did for this configuration
+     */
+    boolean matches(Context context) {
+        Resources resources = context.getResources();
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        return densityDpi == metrics.densityDpi && scaledDensity == metrics.scaledDensity &&
+                configuration.equals(resources.getConfiguration());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Runs the background setup work of all CassowaryLayouts on one bounded pool of worker threads, sized to the number
+ * of cores. Tasks with a higher priority (layouts that are attached and shown) run first, tasks that have not
+ * started can be cancelled. An application can provide its own executor with setExecutor.
+ */
+public class SetupScheduler {
+
+    private static final String LOG_TAG = "SetupScheduler";
+
+    public static final int PRIORITY_DETACHED = 0;
+    public static final int PRIORITY_ATTACHED = 1;
+    public static final int PRIORITY_VISIBLE = 2;
+
+    private static final int KEEP_ALIVE_SECONDS = 5;
+
+    private static SetupScheduler instance;
+
+    private Executor executor;
+    private ThreadPoolExecutor defaultExecutor;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong totalRunTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    public static synchronized SetupScheduler getInstance() {
+        if (instance == null) {
+            instance = new SetupScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the worker pool with an executor provided by the application. Tasks submitted earlier keep running
+     * on the executor they were submitted to.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Task submit(Runnable work, int priority) {
+        Task task = new Task(work, priority);
+        queueDepth.incrementAndGet();
+        task.executor = getExecutor();
+        task.executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return the number of tasks that have been submitted and have neither started nor been cancelled
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTasks.get();
+    }
+
+    /**
+     * @return the average time in milliseconds completed tasks waited in the queue before running
+     */
+    public long getAverageWaitTime() {
+        long completed = completedTasks.get();
+        return completed == 0 ? 0 : totalWaitTime.get() / completed;
+    }
+
+    /**
+     * @return the longest time in milliseconds a task waited in the queue before running
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * @return the average time in milliseconds completed tasks took to run
+     */
+    public long getAverageRunTime() {
+        long completed = completedTasks.get();
+        return completed == 0 ? 0 : totalRunTime.get() / completed;
+    }
+
+    private synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            defaultExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new SetupThreadFactory());
+            defaultExecutor.allowCoreThreadTimeOut(true);
+        }
+        return defaultExecutor;
+    }
+
+    private void recordCompleted(long waitTime, long runTime) {
+        completedTasks.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        totalRunTime.addAndGet(runTime);
+        long max = maxWaitTime.get();
+        while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    public class Task implements Runnable, Comparable<Task> {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final Runnable work;
+        private final long order = sequence.incrementAndGet();
+        private final long submitTime = System.nanoTime();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int priority;
+        private Executor executor;
+
+        private Task(Runnable work, int priority) {
+            this.work = work;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            queueDepth.decrementAndGet();
+            long startTime = System.nanoTime();
+            try {
+                work.run();
+            } finally {
+                recordCompleted(TimerUtil.since(submitTime) - TimerUtil.since(startTime), TimerUtil.since(startTime));
+                done.countDown();
+            }
+        }
+
+        /**
+         * Cancels the task if it has not started.
+         * @return true if the task will not run
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                queueDepth.decrementAndGet();
+                if (executor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) executor).remove(this);
+                }
+                done.countDown();
+                Log.d(LOG_TAG, "cancelled task after " + TimerUtil.since(submitTime));
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Changes the priority of a queued task. The task is moved within the queue when it runs on the default pool.
+         */
+        public void setPriority(int priority) {
+            if (this.priority == priority) {
+                return;
+            }
+            this.priority = priority;
+            if (state.get() == QUEUED && executor == defaultExecutor && defaultExecutor.remove(this)) {
+                defaultExecutor.execute(this);
+            }
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Blocks until the task has run or has been cancelled, or the timeout expires.
+         * @return true if the task is done
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            return order < another.order ? -1 : (order == another.order ? 0 : 1);
+        }
+    }
+
+    private static class SetupThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "CassowarySetup #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
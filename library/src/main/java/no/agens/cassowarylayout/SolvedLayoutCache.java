@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.agens.cassowarylayout.util.TimerUtil;
+
+/**
+ * Keeps the measured size and frames of solved layouts in files under the cache directory, so that they survive
+ * restarts of the app. Entries are keyed by a hash of the constraints, the measure specs, the display density and
+ * the font scale, read through memory mapped files and written on the SetupScheduler. Each key is written at most
+ * once per process, so that a layout solved on every frame, e.g. while dragging, does not write on every frame. The
+ * least recently used entries are deleted when the cache exceeds its size, reads record their access time in memory
+ * until it is applied to the file on the SetupScheduler. Entries written by another version of the library are
+ * ignored.
+ *
+ * The key does not include the intrinsic sizes of children, which are only known once the children are measured, so
+ * layouts with children of intrinsic size are not cached.
+ */
+public class SolvedLayoutCache {
+
+    private static final String LOG_TAG = "SolvedLayoutCache";
+
+    private static final String DIRECTORY_NAME = "cassowary";
+    private static final int MAGIC = 0x43534c43;
+    private static final int FORMAT_VERSION = 1;
+    private static final String VERSION = BuildConfig.VERSION_NAME + "/" + FORMAT_VERSION;
+    private static final long DEFAULT_MAX_BYTES = 512 * 1024;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static SolvedLayoutCache instance;
+
+    private final File directory;
+    private final Context context;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    // the files written or being written by this process, see put
+    private final Set<String> writtenFiles = Collections.synchronizedSet(new HashSet<String>());
+    // the times files were read at since they were last applied to the files, see get
+    private final HashMap<String, Long> accessTimes = new HashMap<String, Long>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public static synchronized SolvedLayoutCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new SolvedLayoutCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SolvedLayoutCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        this.context = context;
+    }
+
+    /**
+     * @return a hash identifying the constraints and the version of the library that solves them
+     */
+    public static String hashConstraints(CharSequence[] constraints) {
+        MessageDigest digest = createDigest();
+        digest.update(VERSION.getBytes(UTF_8));
+        for (CharSequence constraint : constraints) {
+            digest.update((byte) '\n');
+            digest.update(constraint.toString().getBytes(UTF_8));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the cached entry, or null if there is none
+     */
+    public FirstFrameCache.Entry get(String constraintsHash, int widthMeasureSpec, int heightMeasureSpec) {
+        long timeBefore = System.nanoTime();
+        File file = getFile(constraintsHash, widthMeasureSpec, heightMeasureSpec);
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            FirstFrameCache.Entry entry = readEntry(buffer);
+            if (entry == null) {
+                // written by another version
+                file.delete();
+                misses.incrementAndGet();
+                return null;
+            }
+            recordAccess(file);
+            hits.incrementAndGet();
+            Log.d(LOG_TAG, "read " + file.getName() + " took " + TimerUtil.since(timeBefore));
+            return entry;
+        } catch (IOException e) {
+            return readFailed(file, e);
+        } catch (RuntimeException e) {
+            // a truncated or corrupt entry
+            return readFailed(file, e);
+        } finally {
+            close(randomAccessFile);
+        }
+    }
+
+    private void recordAccess(File file) {
+        synchronized (accessTimes) {
+            accessTimes.put(file.getName(), System.currentTimeMillis());
+            if (accessTimes.size() > 1) {
+                // applied along with the time recorded first
+                return;
+            }
+        }
+        SetupScheduler.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                applyAccessTimes();
+            }
+        }, SetupScheduler.PRIORITY_DETACHED);
+    }
+
+    private void applyAccessTimes() {
+        HashMap<String, Long> times;
+        synchronized (accessTimes) {
+            times = new HashMap<String, Long>(accessTimes);
+            accessTimes.clear();
+        }
+        for (Map.Entry<String, Long> time : times.entrySet()) {
+            new File(directory, time.getKey()).setLastModified(time.getValue());
+        }
+    }
+
+    private FirstFrameCache.Entry readFailed(File file, Exception e) {
+        Log.e(LOG_TAG, "could not read " + file.getName(), e);
+        file.delete();
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Writes the entry on the SetupScheduler, unless an entry for the same key has been written by this process.
+     */
+    public void put(String constraintsHash, int widthMeasureSpec, int heightMeasureSpec, final FirstFrameCache.Entry entry) {
+        final File file = getFile(constraintsHash, widthMeasureSpec, heightMeasureSpec);
+        if (!writtenFiles.add(file.getName())) {
+            return;
+        }
+        SetupScheduler.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                write(file, entry);
+            }
+        }, SetupScheduler.PRIORITY_DETACHED);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    private File getFile(String constraintsHash, int widthMeasureSpec, int heightMeasureSpec) {
+        // read on every lookup, as both change with the configuration
+        float density = context.getResources().getDisplayMetrics().density;
+        float fontScale = context.getResources().getConfiguration().fontScale;
+        MessageDigest digest = createDigest();
+        digest.update((constraintsHash + "@" + widthMeasureSpec + "x" + heightMeasureSpec + "@" + density + "@" + fontScale).getBytes(UTF_8));
+        return new File(directory, toHex(digest.digest()));
+    }
+
+    private static FirstFrameCache.Entry readEntry(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        int measuredWidth = buffer.getInt();
+        int measuredHeight = buffer.getInt();
+        float containerWidth = buffer.getFloat();
+        float containerHeight = buffer.getFloat();
+        int slotCount = buffer.getInt();
+        String[] names = new String[slotCount];
+        for (int slot = 0; slot < slotCount; slot++) {
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            names[slot] = new String(name, UTF_8);
+        }
+        float[] frames = new float[slotCount * 4];
+        buffer.asFloatBuffer().get(frames);
+        FrameSnapshot snapshot = new FrameSnapshot(new FrameSnapshot.Slots(names), frames, containerWidth, containerHeight,
+                new HashMap<String, Double>(), 0);
+        return new FirstFrameCache.Entry(measuredWidth, measuredHeight, snapshot);
+    }
+
+    private void write(File file, FirstFrameCache.Entry entry) {
+        long timeBefore = System.nanoTime();
+        FrameSnapshot snapshot = entry.getFrames();
+        int slotCount = snapshot.getSlotCount();
+        byte[][] names = new byte[slotCount][];
+        int size = 7 * 4 + slotCount * 4 * 4;
+        for (int slot = 0; slot < slotCount; slot++) {
+            names[slot] = snapshot.getName(slot).getBytes(UTF_8);
+            size += 2 + names[slot].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(entry.getMeasuredWidth());
+        buffer.putInt(entry.getMeasuredHeight());
+        buffer.putFloat(snapshot.getContainerWidth());
+        buffer.putFloat(snapshot.getContainerHeight());
+        buffer.putInt(slotCount);
+        for (byte[] name : names) {
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            buffer.putFloat(snapshot.getLeft(slot));
+            buffer.putFloat(snapshot.getTop(slot));
+            buffer.putFloat(snapshot.getWidth(slot));
+            buffer.putFloat(snapshot.getHeight(slot));
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "could not create " + directory);
+            return;
+        }
+        // written to a temporary file of its own and renamed, so that readers never map a partially written entry
+        File temporaryFile = null;
+        FileOutputStream outputStream = null;
+        try {
+            temporaryFile = File.createTempFile(file.getName(), TEMPORARY_SUFFIX, directory);
+            outputStream = new FileOutputStream(temporaryFile);
+            outputStream.write(buffer.array());
+            outputStream.close();
+            outputStream = null;
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("could not rename " + temporaryFile);
+            }
+            writes.incrementAndGet();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not write " + file.getName(), e);
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        } finally {
+            close(outputStream);
+        }
+        trimToSize();
+        Log.d(LOG_TAG, "write " + file.getName() + " took " + TimerUtil.since(timeBefore));
+    }
+
+    private synchronized void trimToSize() {
+        // the entries read most recently are kept
+        applyAccessTimes();
+        // entries being written are left to their writers
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.endsWith(TEMPORARY_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && totalBytes > maxBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
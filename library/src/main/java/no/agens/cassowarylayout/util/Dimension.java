@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Agens AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.agens.cassowarylayout.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A dimension constant in constraints, e.g. 16dp or matchParent. Plain Java, so that the offline solver in buildSrc
+ * reads dimensions the way DimensionParser does.
+ */
+public final class Dimension {
+
+    private static final Pattern PATTERN = Pattern.compile("^(wrapContent|matchParent)|(\\d+)(px|dp|sp|pt|in|mm)");
+
+    // RelativeLayout.LayoutParams.MATCH_PARENT and WRAP_CONTENT
+    public static final double MATCH_PARENT = -1;
+    public static final double WRAP_CONTENT = -2;
+
+    private final double value;
+    private final String unit;
+
+    private Dimension(double value, String unit) {
+        this.value = value;
+        this.unit = unit;
+    }
+
+    /**
+     * @return the dimension, or null if the string is not one
+     */
+    public static Dimension parse(String string) {
+        Matcher matcher = PATTERN.matcher(string);
+        if (!matcher.matches()) {
+            return null;
+        }
+        if (matcher.group(2) == null) {
+            return new Dimension("wrapContent".equals(matcher.group(1)) ? WRAP_CONTENT : MATCH_PARENT, null);
+        }
+        try {
+            return new Dimension(Integer.parseInt(matcher.group(2)), matcher.group(3));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the value in the unit, or MATCH_PARENT or WRAP_CONTENT
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return the unit, e.g. dp, or null for MATCH_PARENT and WRAP_CONTENT
+     */
+    public String getUnit() {
+        return unit;
+    }
+}
@@ -19,41 +19,23 @@ package no.agens.cassowarylayout.util;
 
 import android.content.Context;
 import android.util.TypedValue;
-import android.widget.RelativeLayout;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Created by alex on 09/09/2014.
  */
 public class DimensionParser {
 
-    private static Pattern pattern = Pattern.compile("^(wrapContent|matchParent)|(\\d+)(px|dp|sp|pt|in|mm)");
-
     public static Double getDimension(String widthHeightString, Context context) {
 
         Double widthHeight = null;
 
-        Matcher matcher = pattern.matcher(widthHeightString);
-
-        matcher.find();
+        Dimension dimension = Dimension.parse(widthHeightString);
 
-        if (matcher.matches()) {
-            if  (matcher.group(2) == null) {
-                widthHeight = (double)RelativeLayout.LayoutParams.MATCH_PARENT;
-                if ("wrapContent".equals(matcher.group(1))) {
-                    widthHeight = (double)RelativeLayout.LayoutParams.WRAP_CONTENT;
-                }
+        if (dimension != null) {
+            if (dimension.getUnit() == null) {
+                widthHeight = dimension.getValue();
             } else {
-                String value = matcher.group(2);
-                String unit = matcher.group(3);
-                try {
-                    widthHeight = (double)TypedValue.applyDimension(getUnitFromString(unit), Integer.parseInt(value), context.getResources().getDisplayMetrics());
-                    //widthHeight = Integer.parseInt(widthHeightString.substring(0, widthHeightString.));
-                } catch (NumberFormatException e) {
-                    // ignore
-                }
+                widthHeight = (double)TypedValue.applyDimension(getUnitFromString(dimension.getUnit()), (float) dimension.getValue(), context.getResources().getDisplayMetrics());
             }
         }
 
@@ -0,0 +1,83 @@
+package no.agens.cassowarylayout.util;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Calls back once on the next display frame after scheduleFrame. Uses Choreographer where available (API 16) and
+ * falls back to a handler delay of one frame interval. Must be used from the main thread.
+ */
+public class FrameScheduler {
+
+    public interface Callback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    private static final long FRAME_INTERVAL_MILLIS = 16;
+
+    private final Callback callback;
+    private boolean scheduled;
+
+    private Handler handler;
+    private Runnable handlerCallback;
+    private ChoreographerCallback choreographerCallback;
+
+    public FrameScheduler(Callback callback) {
+        this.callback = callback;
+    }
+
+    public void scheduleFrame() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (choreographerCallback == null) {
+                choreographerCallback = new ChoreographerCallback();
+            }
+            Choreographer.getInstance().postFrameCallback(choreographerCallback);
+        } else {
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+                handlerCallback = new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrame(System.nanoTime());
+                    }
+                };
+            }
+            handler.postDelayed(handlerCallback, FRAME_INTERVAL_MILLIS);
+        }
+    }
+
+    public void cancel() {
+        if (!scheduled) {
+            return;
+        }
+        scheduled = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && choreographerCallback != null) {
+            Choreographer.getInstance().removeFrameCallback(choreographerCallback);
+        }
+        if (handler != null) {
+            handler.removeCallbacks(handlerCallback);
+        }
+    }
+
+    public boolean isScheduled() {
+        return scheduled;
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        scheduled = false;
+        callback.doFrame(frameTimeNanos);
+    }
+
+    private class ChoreographerCallback implements Choreographer.FrameCallback {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+        }
+    }
+}